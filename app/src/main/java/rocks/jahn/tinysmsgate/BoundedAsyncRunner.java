@@ -0,0 +1,176 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Runs NanoHTTPD connections on a fixed number of threads instead of one new thread each.
+ *
+ * Connections beyond the busy threads wait in a queue of bounded depth. When that is full too,
+ * the connection is rejected right on the accepting thread: a {@link Rejectable} connection
+ * answers with a canned response and is read to the end on a single closer thread, so the
+ * client sees the response rather than a reset; any other one is just closed. A connection
+ * holds its thread while it is kept alive, see {@link #isSaturated()}.
+ */
+public class BoundedAsyncRunner implements NanoHTTPD.AsyncRunner {
+    /** Rejected connections waiting to be read to the end, beyond that they are closed at once */
+    private static final int CLOSER_QUEUE = 64;
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor closer;
+    private final Set<NanoHTTPD.ClientHandler> connections =
+            Collections.synchronizedSet(new LinkedHashSet<NanoHTTPD.ClientHandler>());
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public BoundedAsyncRunner(int threads, int queueDepth) {
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueDepth)), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SMSGateWebServer-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        closer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(CLOSER_QUEUE), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SMSGateWebServer-closer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        closer.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void exec(final NanoHTTPD.ClientHandler connection) {
+        connections.add(connection);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    inFlight.incrementAndGet();
+                    try {
+                        connection.run();
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            connections.remove(connection);
+            rejected.incrementAndGet();
+            if (connection instanceof Rejectable) {
+                final Rejectable rejectable = (Rejectable) connection;
+                rejectable.reject();
+                try {
+                    closer.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                rejectable.drain();
+                            } finally {
+                                connection.close();
+                            }
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException full) {
+                    // closed right away, the client may see a reset instead of the response
+                }
+            }
+            connection.close();
+        }
+    }
+
+    @Override
+    public void closed(NanoHTTPD.ClientHandler connection) {
+        connections.remove(connection);
+    }
+
+    @Override
+    public void closeAll() {
+        List<NanoHTTPD.ClientHandler> open;
+        synchronized (connections) {
+            open = new ArrayList<>(connections);
+        }
+        for (NanoHTTPD.ClientHandler connection : open) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Let the threads end once their connections are closed, no new ones are taken
+     */
+    public void shutdown() {
+        executor.shutdown();
+        closer.shutdown();
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return connections being served right now
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return whether a new connection would have to wait for a thread, connections should not
+     * be kept alive then
+     */
+    public boolean isSaturated() {
+        return inFlight.get() >= executor.getMaximumPoolSize() || !executor.getQueue().isEmpty();
+    }
+
+    /**
+     * @return connections waiting for a thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return connections turned away because every thread was busy and the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * A connection that can answer before it is closed for lack of capacity
+     */
+    public interface Rejectable {
+        /**
+         * Called on the accepting thread, so it must not read the request or block
+         */
+        void reject();
+
+        /**
+         * Read what the client still sends after {@link #reject()}, on the closer thread, so
+         * closing does not reset the connection before the response arrived
+         */
+        void drain();
+    }
+}
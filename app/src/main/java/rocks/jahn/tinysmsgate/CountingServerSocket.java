@@ -0,0 +1,85 @@
+package rocks.jahn.tinysmsgate;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A server socket whose connections count the bytes read from and written to them, headers
+ * included. The streams are wrapped once per connection, counting a read or write only adds to
+ * a {@link StripedCounter}.
+ */
+public class CountingServerSocket extends ServerSocket {
+    private final StripedCounter received;
+    private final StripedCounter sent;
+
+    public CountingServerSocket(StripedCounter received, StripedCounter sent) throws IOException {
+        this.received = received;
+        this.sent = sent;
+    }
+
+    @Override
+    public Socket accept() throws IOException {
+        Socket socket = new CountingSocket(received, sent);
+        implAccept(socket);
+        return socket;
+    }
+
+    private static class CountingSocket extends Socket {
+        private final StripedCounter received;
+        private final StripedCounter sent;
+        private InputStream input;
+        private OutputStream output;
+
+        CountingSocket(StripedCounter received, StripedCounter sent) {
+            this.received = received;
+            this.sent = sent;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (input == null) {
+                input = new FilterInputStream(super.getInputStream()) {
+                    @Override
+                    public int read() throws IOException {
+                        int b = in.read();
+                        if (b >= 0) received.add(1);
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = in.read(b, off, len);
+                        if (n > 0) received.add(n);
+                        return n;
+                    }
+                };
+            }
+            return input;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (output == null) {
+                output = new FilterOutputStream(super.getOutputStream()) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        sent.add(1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        sent.add(len);
+                    }
+                };
+            }
+            return output;
+        }
+    }
+}
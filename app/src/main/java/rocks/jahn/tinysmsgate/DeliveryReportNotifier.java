@@ -0,0 +1,173 @@
+package rocks.jahn.tinysmsgate;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes sent, delivered and failed events to txtCallbackUrl.
+ *
+ * Events are collected into batches of up to txtCallbackBatchSize events or txtCallbackWindow
+ * milliseconds, whichever comes first, and POSTed as one JSON array:
+ * [{"id": ..., "phone": ..., "status": "DELIVERED", "time": epoch millis, "error": code}, ...]
+ *
+ * The buffer between the send path and the worker is bounded and {@link #report} never blocks.
+ * While the callback endpoint is slow or down the worker retries its current batch, the buffer
+ * fills up and further events are dropped and counted.
+ */
+public class DeliveryReportNotifier extends Thread {
+    private static final String TAG = "DeliveryReportNotifier";
+    private static final int BUFFER_SIZE = 20000;
+    private static final long RETRY_DELAY = 2000;
+    private static final long MAX_RETRY_DELAY = 60 * 1000;
+    private static final int MAX_ATTEMPTS = 8;
+
+    private final SharedPreferences preferences;
+    private final ArrayBlockingQueue<Event> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private final WebhookClient client = new WebhookClient();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong posted = new AtomicLong();
+    private volatile boolean running = true;
+
+    public DeliveryReportNotifier(SharedPreferences preferences) {
+        super("DeliveryReportNotifier");
+        setDaemon(true);
+        this.preferences = preferences;
+    }
+
+    /**
+     * Queue an event for the callback, dropped if the buffer is full or callbacks are off
+     *
+     * @param error result code of a failed send or delivery, 0 otherwise
+     */
+    public void report(long id, String phone, byte status, int error) {
+        if (!preferences.getBoolean("chkCallback", false)) return;
+        if (!buffer.offer(new Event(id, phone, status, error, System.currentTimeMillis()))) {
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                Log.w(TAG, "Callback buffer is full, " + dropped.get() + " events dropped so far");
+            }
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getPosted() {
+        return posted.get();
+    }
+
+    public int getBuffered() {
+        return buffer.size();
+    }
+
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        List<Event> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Event first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                int batchSize = GatewayConfig.getIntPreference(preferences, "txtCallbackBatchSize", 500);
+                long window = GatewayConfig.getIntPreference(preferences, "txtCallbackWindow", 1000);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(window);
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        buffer.drainTo(batch, batchSize - batch.size());
+                        break;
+                    }
+                    Event next = buffer.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                post(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * POST the batch, retrying with a growing delay before giving up on it
+     */
+    private void post(List<Event> batch) throws InterruptedException {
+        byte[] body;
+        try {
+            body = encode(batch);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return;
+        }
+        long delay = RETRY_DELAY;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && running; attempt++) {
+            String url = preferences.getString("txtCallbackUrl", "");
+            try {
+                int responseCode = client.execute("POST", url, "application/json; charset=utf-8", body, false);
+                if (responseCode >= 200 && responseCode < 300) {
+                    posted.addAndGet(batch.size());
+                    return;
+                }
+                Log.w(TAG, "Callback returned " + responseCode + ", attempt " + attempt);
+            } catch (IOException e) {
+                Log.w(TAG, "Callback failed: " + e.getMessage() + ", attempt " + attempt);
+            }
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+        dropped.addAndGet(batch.size());
+        Log.e(TAG, "Gave up on a callback batch of " + batch.size() + " events");
+    }
+
+    private static byte[] encode(List<Event> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.size() * 96);
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        writer.beginArray();
+        for (Event event : batch) {
+            writer.beginObject();
+            writer.name("id").value(event.id);
+            writer.name("phone").value(event.phone);
+            writer.name("status").value(DeliveryStatusIndex.name(event.status));
+            writer.name("time").value(event.time);
+            if (event.error != 0) writer.name("error").value(event.error);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static class Event {
+        final long id;
+        final String phone;
+        final byte status;
+        final int error;
+        final long time;
+
+        Event(long id, String phone, byte status, int error, long time) {
+            this.id = id;
+            this.phone = phone;
+            this.status = status;
+            this.error = error;
+            this.time = time;
+        }
+    }
+}
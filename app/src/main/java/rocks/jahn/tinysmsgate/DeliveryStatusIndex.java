@@ -0,0 +1,321 @@
+package rocks.jahn.tinysmsgate;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Latest delivery status of recently sent messages, by message id.
+ *
+ * Messages live in a ring of parallel primitive arrays, the oldest one is evicted when the ring
+ * is full or when it is older than the TTL, and an open addressing table (linear probing,
+ * backward shift deletion) maps ids to ring slots. Memory use is fixed at roughly 32 bytes per
+ * tracked message and no objects are allocated per update.
+ *
+ * Every change is also appended to one of two tail files as a fixed-size record, the first
+ * record of a message is flagged as such. When a ring's worth of messages was started in the
+ * current file the other one is truncated and takes over. Every tracked message was then
+ * started in one of the two files and all of its later changes follow in them, so replaying the
+ * older and then the newer file on open restores the index. Changes of messages started before
+ * the older file are skipped on replay.
+ */
+public class DeliveryStatusIndex {
+    private static final String TAG = "DeliveryStatusIndex";
+
+    public static final byte UNKNOWN = 0;
+    public static final byte QUEUED = 1;
+    public static final byte DISPATCHED = 2;
+    public static final byte SENT = 3;
+    public static final byte FAILED = 4;
+    public static final byte DELIVERED = 5;
+    public static final byte UNDELIVERED = 6;
+    private static final String[] NAMES = {
+            "UNKNOWN", "QUEUED", "DISPATCHED", "SENT", "FAILED", "DELIVERED", "UNDELIVERED"
+    };
+
+    /** [long id][long time][int error][byte status][byte first record flag][2 bytes padding] */
+    private static final int RECORD_SIZE = 24;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    private final int capacity;
+    private final long ttl;
+    private final long[] ids;
+    private final long[] createdAt;
+    private final long[] updatedAt;
+    private final int[] errors;
+    private final byte[] statuses;
+    /** ring slot + 1 for each id, 0 marks an empty bucket */
+    private final int[] table;
+    private final int mask;
+    private int head;
+    private int size;
+
+    private final File directory;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private FileChannel tail;
+    private long generation;
+    /** messages started in the current tail file */
+    private int tailMessages;
+
+    /**
+     * @param directory where the tail files are kept, null for a memory-only index
+     * @param capacity most messages tracked at the same time
+     * @param ttl milliseconds a message is tracked after it was queued
+     */
+    public DeliveryStatusIndex(File directory, int capacity, long ttl) {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.ttl = ttl;
+        ids = new long[capacity];
+        createdAt = new long[capacity];
+        updatedAt = new long[capacity];
+        errors = new int[capacity];
+        statuses = new byte[capacity];
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    public static String name(byte status) {
+        return status >= 0 && status < NAMES.length ? NAMES[status] : NAMES[UNKNOWN];
+    }
+
+    /**
+     * Load the tail files and continue appending to the newer one
+     */
+    public synchronized void open() throws IOException {
+        if (directory == null) return;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        RandomAccessFile[] files = {
+                new RandomAccessFile(new File(directory, "status.0"), "rw"),
+                new RandomAccessFile(new File(directory, "status.1"), "rw")
+        };
+        long[] generations = new long[2];
+        for (int i = 0; i < 2; i++) {
+            generations[i] = files[i].length() >= FILE_HEADER_SIZE ? files[i].readLong() : -1;
+        }
+        int newer = generations[1] > generations[0] ? 1 : 0;
+        replay(files[1 - newer].getChannel());
+        tailMessages = replay(files[newer].getChannel());
+
+        files[1 - newer].close();
+        tail = files[newer].getChannel();
+        generation = Math.max(generations[newer], 0);
+        if (generations[newer] < 0) {
+            tail.truncate(0);
+            writeHeader();
+        }
+        long length = tail.size();
+        long records = (length - FILE_HEADER_SIZE) / RECORD_SIZE;
+        tail.position(FILE_HEADER_SIZE + records * RECORD_SIZE);
+    }
+
+    public synchronized void close() {
+        if (tail == null) return;
+        try {
+            tail.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+        tail = null;
+    }
+
+    /**
+     * @return the number of messages started in the file
+     */
+    private int replay(FileChannel channel) throws IOException {
+        int started = 0;
+        long length = channel.size();
+        if (length < FILE_HEADER_SIZE) return started;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 512);
+        long position = FILE_HEADER_SIZE;
+        while (position + RECORD_SIZE <= length) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < RECORD_SIZE) break;
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                long id = buffer.getLong();
+                long time = buffer.getLong();
+                int error = buffer.getInt();
+                byte status = buffer.get();
+                boolean first = buffer.get() != 0;
+                buffer.position(buffer.position() + 2);
+                if (first) started++;
+                if (first || find(id) >= 0) apply(id, status, error, time);
+                position += RECORD_SIZE;
+            }
+        }
+        return started;
+    }
+
+    /**
+     * Record a new status for the message, starting to track it if needed
+     *
+     * @param error the result code of a failed send or delivery, 0 otherwise
+     */
+    public synchronized void update(long id, byte status, int error) {
+        long now = System.currentTimeMillis();
+        boolean first = apply(id, status, error, now);
+        append(id, status, error, now, first);
+    }
+
+    /**
+     * @return the status of the message, UNKNOWN if it is not tracked
+     */
+    public synchronized byte getStatus(long id) {
+        int slot = find(id);
+        return slot < 0 ? UNKNOWN : statuses[slot];
+    }
+
+    /**
+     * Copy the tracked state of the message into the entry
+     *
+     * @return false if the message is not tracked
+     */
+    public synchronized boolean get(long id, Entry entry) {
+        int slot = find(id);
+        if (slot < 0) return false;
+        entry.id = id;
+        entry.status = statuses[slot];
+        entry.error = errors[slot];
+        entry.createdAt = createdAt[slot];
+        entry.updatedAt = updatedAt[slot];
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the message was not tracked before
+     */
+    private boolean apply(long id, byte status, int error, long time) {
+        evictExpired(time);
+        int slot = find(id);
+        boolean first = slot < 0;
+        if (first) {
+            if (size == capacity) evict();
+            slot = (head + size) % capacity;
+            size++;
+            ids[slot] = id;
+            createdAt[slot] = time;
+            insert(id, slot);
+        } else if (status < statuses[slot]) {
+            // Broadcasts can arrive out of order, never go back from a final state
+            return false;
+        }
+        statuses[slot] = status;
+        errors[slot] = error;
+        updatedAt[slot] = time;
+        return first;
+    }
+
+    private void evictExpired(long now) {
+        while (size > 0 && createdAt[head] < now - ttl) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        remove(ids[head]);
+        head = (head + 1) % capacity;
+        size--;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(long id) {
+        int bucket = hash(id) & mask;
+        while (table[bucket] != 0) {
+            int slot = table[bucket] - 1;
+            if (ids[slot] == id) return slot;
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long id, int slot) {
+        int bucket = hash(id) & mask;
+        while (table[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        table[bucket] = slot + 1;
+    }
+
+    private void remove(long id) {
+        int bucket = hash(id) & mask;
+        while (table[bucket] != 0 && ids[table[bucket] - 1] != id) {
+            bucket = (bucket + 1) & mask;
+        }
+        if (table[bucket] == 0) return;
+        // Shift following entries back so that probing still finds them
+        int hole = bucket;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            int home = hash(ids[table[next] - 1]) & mask;
+            boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (movable) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private void append(long id, byte status, int error, long time, boolean first) {
+        if (tail == null) return;
+        try {
+            if (first && tailMessages >= capacity) rotate();
+            record.clear();
+            record.putLong(id).putLong(time).putInt(error).put(status).put((byte) (first ? 1 : 0))
+                    .put((byte) 0).put((byte) 0);
+            record.flip();
+            tail.write(record);
+            if (first) tailMessages++;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Switch to the other tail file. The current one keeps the changes of the previous ring's
+     * worth of messages, which together with the new file covers every tracked message.
+     */
+    private void rotate() throws IOException {
+        int next = (int) ((generation + 1) % 2);
+        tail.close();
+        tail = new RandomAccessFile(new File(directory, "status." + next), "rw").getChannel();
+        tail.truncate(0);
+        generation++;
+        writeHeader();
+        tailMessages = 0;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putLong(generation);
+        header.flip();
+        tail.write(header, 0);
+        tail.position(FILE_HEADER_SIZE);
+    }
+
+    public static class Entry {
+        public long id;
+        public byte status;
+        public int error;
+        public long createdAt;
+        public long updatedAt;
+    }
+}
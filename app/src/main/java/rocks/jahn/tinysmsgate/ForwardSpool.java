@@ -0,0 +1,432 @@
+package rocks.jahn.tinysmsgate;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Texts that could not be forwarded, waiting for another attempt.
+ *
+ * Entries are kept in one queue per sender so that a sender's texts are delivered in the order
+ * they arrived, and each sender backs off on its own: after the n-th failed attempt the next one
+ * is due after min(MAX_DELAY, BASE_DELAY * 2^n), scaled by a random factor between 0.5 and 1 so
+ * that senders do not retry in lockstep.
+ *
+ * The spool is a journal of ADD and DONE records (same framing as the outbox log:
+ * [int payload length][int crc32][payload]) which is replayed on open and rewritten once most
+ * of it is DONE records. Without a journal, when it cannot be opened, texts are still spooled
+ * and retried, but only in memory until the process ends.
+ *
+ * The spool's monitor only guards the queues in memory and is never held for disk I/O. Journal
+ * writes, fsyncs and compaction are serialized by a separate lock, which is taken before the
+ * monitor so that records reach the journal in the order of the changes they describe. The
+ * size and the oldest reception time are published in volatile fields, readable from the UI
+ * thread without waiting for either lock.
+ */
+public class ForwardSpool {
+    private static final String TAG = "ForwardSpool";
+    private static final int HEADER_SIZE = 8;
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_DONE = 2;
+    private static final long BASE_DELAY = 5 * 1000;
+    private static final long MAX_DELAY = 10 * 60 * 1000;
+    /** Hard limit on spooled texts, the oldest are dropped beyond it */
+    private static final int MAX_ENTRIES = 50000;
+    private static final int COMPACT_THRESHOLD = 1000;
+
+    private final File file;
+    private final Random random = new Random();
+    private final LinkedHashMap<String, Sender> senders = new LinkedHashMap<>();
+    /** Number of spooled texts by reception time */
+    private final TreeMap<Long, Integer> receivedTimes = new TreeMap<>();
+    private long nextSeq;
+    private volatile int size;
+    private volatile long oldestReceivedAt;
+
+    private final Object ioLock = new Object();
+    // guarded by ioLock
+    private RandomAccessFile journal;
+    private int doneRecords;
+
+    public ForwardSpool(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replay the journal, on failure the spool goes on without one
+     */
+    public void open() throws IOException {
+        synchronized (ioLock) {
+            journal = new RandomAccessFile(file, "rw");
+            try {
+                replay();
+            } catch (IOException e) {
+                try {
+                    journal.close();
+                } catch (IOException ignored) {
+                    // failed already
+                }
+                journal = null;
+                throw e;
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        LinkedHashMap<Long, Entry> live = new LinkedHashMap<>();
+        long lastSeq = -1;
+        long offset = 0;
+        long length = journal.length();
+        while (offset + HEADER_SIZE <= length) {
+            journal.seek(offset);
+            int payloadLength = journal.readInt();
+            int checksum = journal.readInt();
+            if (payloadLength <= 0 || offset + HEADER_SIZE + payloadLength > length) break;
+            byte[] payload = new byte[payloadLength];
+            journal.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payloadLength);
+            if ((int) crc.getValue() != checksum) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte type = in.readByte();
+            long seq = in.readLong();
+            if (type == TYPE_ADD) {
+                long spooledAt = in.readLong();
+                long receivedAt = in.readLong();
+                InboundSMS sms = new InboundSMS(in.readUTF(), in.readUTF(), receivedAt);
+                live.put(seq, new Entry(seq, sms, spooledAt));
+            } else {
+                live.remove(seq);
+                doneRecords++;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            offset += HEADER_SIZE + payloadLength;
+        }
+        if (offset < length) {
+            Log.w(TAG, "Truncating " + (length - offset) + " bytes of incomplete spool");
+            journal.setLength(offset);
+        }
+        journal.seek(offset);
+
+        synchronized (this) {
+            nextSeq = Math.max(nextSeq, lastSeq + 1);
+            for (Entry entry : live.values()) {
+                enqueue(entry);
+            }
+            publish();
+            if (size > 0) {
+                Log.i(TAG, "Spool holds " + size + " texts from " + senders.size() + " senders");
+            }
+        }
+    }
+
+    /**
+     * @return whether texts from this sender are waiting, a new text from them has to queue
+     * up behind those
+     */
+    public synchronized boolean has(String from) {
+        return senders.containsKey(from);
+    }
+
+    /**
+     * Spool texts after a failed attempt, their senders' next attempt is delayed
+     */
+    public void add(List<InboundSMS> failed) throws IOException {
+        synchronized (ioLock) {
+            List<Entry> added = new ArrayList<>(failed.size());
+            List<Entry> dropped = new ArrayList<>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (InboundSMS sms : failed) {
+                    Entry entry = new Entry(nextSeq++, sms, now);
+                    added.add(entry);
+                    boolean known = senders.containsKey(sms.from);
+                    Sender sender = enqueue(entry);
+                    if (!known) backOff(sender, now);
+                }
+                while (size > MAX_ENTRIES) {
+                    dropped.add(dropOldest());
+                }
+                publish();
+                notifyAll();
+            }
+            if (journal == null) return;
+            for (Entry entry : added) {
+                write(journal, encodeAdd(entry));
+            }
+            for (Entry entry : dropped) {
+                writeDone(entry);
+            }
+            journal.getFD().sync();
+        }
+    }
+
+    /**
+     * Wait until some sender is due for another attempt
+     */
+    public synchronized void awaitReady() throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            for (Sender sender : senders.values()) {
+                next = Math.min(next, sender.nextAttemptAt);
+            }
+            if (next <= now) return;
+            wait(next == Long.MAX_VALUE ? 0 : next - now);
+        }
+    }
+
+    /**
+     * The waiting texts of senders due for another attempt, in order and at most max of them.
+     * They stay in the spool until {@link #delivered} or {@link #failed} is called.
+     *
+     * @param perSender at most this many texts of each sender
+     */
+    public synchronized List<Entry> ready(int max, int perSender) {
+        long now = System.currentTimeMillis();
+        List<Entry> ready = new ArrayList<>();
+        for (Sender sender : senders.values()) {
+            if (sender.nextAttemptAt > now) continue;
+            int taken = 0;
+            for (Entry entry : sender.entries) {
+                if (ready.size() >= max || taken++ >= perSender) break;
+                ready.add(entry);
+            }
+            if (ready.size() >= max) break;
+        }
+        return ready;
+    }
+
+    public void delivered(List<Entry> entries) {
+        synchronized (ioLock) {
+            List<Entry> done = new ArrayList<>(entries.size());
+            synchronized (this) {
+                for (Entry entry : entries) {
+                    Sender sender = senders.get(entry.sms.from);
+                    if (sender == null || !sender.entries.remove(entry)) continue;
+                    removed(entry);
+                    sender.attempts = 0;
+                    sender.nextAttemptAt = 0;
+                    if (sender.entries.isEmpty()) senders.remove(entry.sms.from);
+                    done.add(entry);
+                }
+                publish();
+            }
+            for (Entry entry : done) {
+                writeDone(entry);
+            }
+            compactIfNeeded();
+        }
+    }
+
+    public synchronized void failed(List<Entry> entries) {
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries) {
+            Sender sender = senders.get(entry.sms.from);
+            if (sender != null && sender.nextAttemptAt <= now) backOff(sender, now);
+        }
+    }
+
+    /**
+     * Drop texts that are too old or whose sender failed too many times in a row
+     *
+     * @return number of dropped texts
+     */
+    public int expire(long maxAge, int maxAttempts) {
+        synchronized (ioLock) {
+            List<Entry> dropped = new ArrayList<>();
+            synchronized (this) {
+                long oldest = System.currentTimeMillis() - maxAge;
+                Iterator<Sender> senderIterator = senders.values().iterator();
+                while (senderIterator.hasNext()) {
+                    Sender sender = senderIterator.next();
+                    boolean giveUp = sender.attempts >= maxAttempts;
+                    Iterator<Entry> iterator = sender.entries.iterator();
+                    while (iterator.hasNext()) {
+                        Entry entry = iterator.next();
+                        if (giveUp || entry.sms.receivedAt < oldest) {
+                            iterator.remove();
+                            removed(entry);
+                            dropped.add(entry);
+                        }
+                    }
+                    if (sender.entries.isEmpty()) senderIterator.remove();
+                }
+                publish();
+            }
+            if (dropped.isEmpty()) return 0;
+            Log.w(TAG, "Dropped " + dropped.size() + " texts that could not be forwarded");
+            for (Entry entry : dropped) {
+                writeDone(entry);
+            }
+            compactIfNeeded();
+            return dropped.size();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return reception time of the oldest spooled text, 0 if the spool is empty
+     */
+    public long oldestReceivedAt() {
+        return oldestReceivedAt;
+    }
+
+    private Sender enqueue(Entry entry) {
+        Sender sender = senders.get(entry.sms.from);
+        if (sender == null) {
+            sender = new Sender();
+            senders.put(entry.sms.from, sender);
+        }
+        sender.entries.addLast(entry);
+        size++;
+        Integer count = receivedTimes.get(entry.sms.receivedAt);
+        receivedTimes.put(entry.sms.receivedAt, count == null ? 1 : count + 1);
+        return sender;
+    }
+
+    private void removed(Entry entry) {
+        size--;
+        Integer count = receivedTimes.get(entry.sms.receivedAt);
+        if (count == null || count <= 1) {
+            receivedTimes.remove(entry.sms.receivedAt);
+        } else {
+            receivedTimes.put(entry.sms.receivedAt, count - 1);
+        }
+    }
+
+    private void publish() {
+        oldestReceivedAt = receivedTimes.isEmpty() ? 0 : receivedTimes.firstKey();
+    }
+
+    private void backOff(Sender sender, long now) {
+        long delay = BASE_DELAY << Math.min(sender.attempts, 16);
+        delay = Math.min(delay, MAX_DELAY);
+        delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+        sender.attempts++;
+        sender.nextAttemptAt = now + delay;
+    }
+
+    private Entry dropOldest() {
+        Entry oldest = null;
+        for (Sender sender : senders.values()) {
+            Entry head = sender.entries.getFirst();
+            if (oldest == null || head.seq < oldest.seq) oldest = head;
+        }
+        Sender sender = senders.get(oldest.sms.from);
+        sender.entries.removeFirst();
+        if (sender.entries.isEmpty()) senders.remove(oldest.sms.from);
+        removed(oldest);
+        Log.w(TAG, "Spool is full, dropped a text from " + oldest.sms.from);
+        return oldest;
+    }
+
+    private void writeDone(Entry entry) {
+        if (journal == null) return;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(TYPE_DONE);
+            out.writeLong(entry.seq);
+            write(journal, bytes.toByteArray());
+            doneRecords++;
+        } catch (IOException e) {
+            // At worst the text is forwarded once more after a restart
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    private static byte[] encodeAdd(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(TYPE_ADD);
+        out.writeLong(entry.seq);
+        out.writeLong(entry.spooledAt);
+        out.writeLong(entry.sms.receivedAt);
+        out.writeUTF(entry.sms.from == null ? "" : entry.sms.from);
+        out.writeUTF(entry.sms.message);
+        return bytes.toByteArray();
+    }
+
+    private static void write(RandomAccessFile target, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        target.write(record.array());
+    }
+
+    /**
+     * Rewrite the journal with only the live entries once DONE records dominate it. Called with
+     * the I/O lock held, so no record can be written meanwhile and no entry can come or go.
+     */
+    private void compactIfNeeded() {
+        if (journal == null || doneRecords < COMPACT_THRESHOLD || doneRecords < size * 2) return;
+        List<Entry> live = new ArrayList<>(size);
+        synchronized (this) {
+            for (Sender sender : senders.values()) {
+                live.addAll(sender.entries);
+            }
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            RandomAccessFile compacted = new RandomAccessFile(temp, "rw");
+            try {
+                compacted.setLength(0);
+                for (Entry entry : live) {
+                    write(compacted, encodeAdd(entry));
+                }
+                compacted.getFD().sync();
+            } finally {
+                compacted.close();
+            }
+            journal.close();
+            journal = null;
+            if (!temp.renameTo(file)) Log.e(TAG, "Cannot replace " + file);
+            journal = new RandomAccessFile(file, "rw");
+            journal.seek(journal.length());
+            doneRecords = 0;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    public static class Entry {
+        public final long seq;
+        public final InboundSMS sms;
+        public final long spooledAt;
+
+        Entry(long seq, InboundSMS sms, long spooledAt) {
+            this.seq = seq;
+            this.sms = sms;
+            this.spooledAt = spooledAt;
+        }
+    }
+
+    private static class Sender {
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        int attempts;
+        long nextAttemptAt;
+    }
+}
@@ -0,0 +1,89 @@
+package rocks.jahn.tinysmsgate;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+/**
+ * The preferences needed on every request and every received text, read once into an
+ * immutable snapshot.
+ *
+ * The server swaps in a new snapshot from its OnSharedPreferenceChangeListener, so a request
+ * reads one volatile field instead of going to SharedPreferences for each of them. Everything
+ * else uses the process-wide snapshot of {@link #get(Context)}.
+ */
+public class GatewayConfig {
+    private static volatile GatewayConfig current;
+    /** Held here, SharedPreferences only keeps weak references to its listeners */
+    private static SharedPreferences.OnSharedPreferenceChangeListener listener;
+
+    public final boolean usePassword;
+    public final String password;
+    public final String page;
+    public final String receiveMethod;
+    /** Largest send request body in bytes */
+    public final int maxBodySize;
+    public final boolean forwardSMS;
+
+    public GatewayConfig(boolean usePassword, String password, String page, String receiveMethod,
+                         int maxBodySize, boolean forwardSMS) {
+        this.usePassword = usePassword;
+        this.password = password;
+        this.page = page;
+        this.receiveMethod = receiveMethod;
+        this.maxBodySize = maxBodySize;
+        this.forwardSMS = forwardSMS;
+    }
+
+    /**
+     * The snapshot of the current preferences, kept up to date from the first call on
+     */
+    public static GatewayConfig get(Context context) {
+        GatewayConfig config = current;
+        if (config != null) return config;
+        synchronized (GatewayConfig.class) {
+            if (current == null) {
+                final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+                listener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        current = from(preferences);
+                    }
+                };
+                preferences.registerOnSharedPreferenceChangeListener(listener);
+                current = from(preferences);
+            }
+            return current;
+        }
+    }
+
+    public static GatewayConfig from(SharedPreferences preferences) {
+        return new GatewayConfig(
+                preferences.getBoolean("chkUsePassword", false),
+                preferences.getString("txtPassword", ""),
+                preferences.getString("txtPage", "/send"),
+                preferences.getString("lstReceiveMethod", "POST"),
+                getIntPreference(preferences, "txtMaxBodySize", 64) * 1024,
+                preferences.getBoolean("chkForwardSMS", false));
+    }
+
+    /**
+     * Read a positive number from a text preference
+     *
+     * @return the default if the preference is not a number
+     */
+    public static int getIntPreference(SharedPreferences preferences, String key, int defaultValue) {
+        try {
+            return Math.max(1, Integer.parseInt(preferences.getString(key, String.valueOf(defaultValue))));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return whether the request may go ahead with the password it sent, which may be null
+     */
+    public boolean isAuthorized(String sentPassword) {
+        return !usePassword || password.equals(sentPassword);
+    }
+}
@@ -0,0 +1,24 @@
+package rocks.jahn.tinysmsgate;
+
+/**
+ * A received text on its way to the webhook
+ */
+public class InboundSMS {
+    public final String from;
+    public final String message;
+    /** Wall clock time of reception, milliseconds */
+    public final long receivedAt;
+    /** Id in the inbound {@link MessageTraces} ring, -1 if the text is not traced */
+    public final long traceId;
+
+    public InboundSMS(String from, String message, long receivedAt) {
+        this(from, message, receivedAt, -1);
+    }
+
+    public InboundSMS(String from, String message, long receivedAt, long traceId) {
+        this.from = from;
+        this.message = message;
+        this.receivedAt = receivedAt;
+        this.traceId = traceId;
+    }
+}
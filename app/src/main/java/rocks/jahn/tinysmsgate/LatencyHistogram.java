@@ -0,0 +1,148 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket histogram of durations, safe to record into from any thread without locking.
+ *
+ * Each bucket counts the values up to and including its bound, the last one everything above
+ * the highest bound. Percentiles are estimated by linear interpolation inside the bucket.
+ */
+public class LatencyHistogram {
+    /** Bucket bounds for durations in milliseconds, 1 ms to 10 min */
+    public static final long[] MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 30000, 60000, 120000, 300000, 600000
+    };
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(MILLIS);
+    }
+
+    /**
+     * @param bounds ascending upper bounds of the buckets, in whatever unit values are recorded
+     */
+    public LatencyHistogram(long[] bounds) {
+        this.bounds = bounds;
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) break;
+        }
+    }
+
+    private int bucketOf(long value) {
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (bounds[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public long[] getBounds() {
+        return bounds;
+    }
+
+    /**
+     * @return number of values in the bucket, the bucket at bounds.length holds the overflow
+     */
+    public long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1
+     * @return estimated value at the quantile, 0 if nothing was recorded
+     */
+    public long percentile(double quantile) {
+        long total = getCount();
+        if (total == 0) return 0;
+        double rank = quantile * total;
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long count = counts.get(i);
+            if (count > 0 && seen + count >= rank) {
+                long lower = i == 0 ? 0 : bounds[i - 1];
+                long upper = i < bounds.length ? bounds[i] : Math.max(lower, max.get());
+                long value = lower + (long) ((upper - lower) * ((rank - seen) / count));
+                return Math.min(value, max.get());
+            }
+            seen += count;
+        }
+        return max.get();
+    }
+
+    public Summary summary() {
+        return new Summary(getCount(), percentile(0.5), percentile(0.9), percentile(0.99), getMax());
+    }
+
+    public static class Summary {
+        private long count;
+        private long p50;
+        private long p90;
+        private long p99;
+        private long max;
+
+        public Summary(long count, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package rocks.jahn.tinysmsgate;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rocks.jahn.tinysmsgate.lib.StringUtil;
+
+/**
+ * Every text sent or received, for looking up the conversation with a number.
+ *
+ * The history is a list of segments, each a file of fixed-size records and a heap file of the
+ * strings they point to, both memory-mapped so reads touch only the pages they need and nothing
+ * is copied into the Java heap but the results. A record is
+ * [long time][long id][int phone offset][int text offset][int previous][byte direction]
+ * [byte status][2 bytes padding]; a heap entry is [int length][UTF-8 bytes], and every number
+ * is stored once per segment.
+ *
+ * The previous field is the index of the segment's record before this one with the same
+ * normalized number, -1 for the first. Only the newest record of each number is kept in memory,
+ * so a lookup walks the number's records newest first and stops at the start of the time range
+ * without looking at anyone else's texts. The heads are rebuilt by one sequential scan of the
+ * records on open.
+ *
+ * Records are appended in the order they happen, so times only go back when the clock is set
+ * back. Whole segments are removed, oldest first, beyond txtHistoryMaxSize megabytes or when
+ * their newest text is older than txtHistoryMaxAge days.
+ */
+public class MessageHistory {
+    private static final String TAG = "MessageHistory";
+    private static final String RECORDS_SUFFIX = ".rec";
+    private static final String HEAP_SUFFIX = ".heap";
+    private static final int RECORD_SIZE = 32;
+    public static final int RECORDS_PER_SEGMENT = 65536;
+    public static final int HEAP_SIZE = 8 * 1024 * 1024;
+    /** Longer texts are cut, a segment's heap has to hold a good number of them */
+    private static final int MAX_TEXT_LENGTH = 4096;
+
+    public static final byte INBOUND = 1;
+    public static final byte OUTBOUND = 2;
+
+    private static MessageHistory instance;
+
+    private final File directory;
+    private final SharedPreferences preferences;
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+
+    MessageHistory(File directory, SharedPreferences preferences) {
+        this.directory = directory;
+        this.preferences = preferences;
+    }
+
+    /**
+     * The history of this process, opened on first use
+     */
+    public static synchronized MessageHistory get(Context context) {
+        if (instance == null) {
+            instance = new MessageHistory(new File(context.getFilesDir(), "history"),
+                    PreferenceManager.getDefaultSharedPreferences(context));
+            try {
+                instance.open();
+            } catch (IOException e) {
+                // Nothing is recorded until the next start of the process
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+        return instance;
+    }
+
+    synchronized void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles();
+        List<Long> firsts = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(RECORDS_SUFFIX)) continue;
+                try {
+                    firsts.add(Long.parseLong(name.substring(0, name.length() - RECORDS_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring " + name);
+                }
+            }
+        }
+        Long[] sorted = firsts.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            boolean last = i == sorted.length - 1;
+            Segment segment = new Segment(directory, sorted[i]);
+            segment.open(last);
+            if (segment.count == 0 && !last) {
+                segment.delete();
+                continue;
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            Segment first = new Segment(directory, 0);
+            first.open(true);
+            segments.add(first);
+        }
+        removeExpired();
+    }
+
+    /**
+     * Record a text
+     *
+     * @param direction INBOUND or OUTBOUND
+     * @param id the inbox sequence number of a received text, the outbox id of a sent one
+     * @param status the {@link DeliveryStatusIndex} status a sent text was recorded with
+     */
+    public synchronized void add(byte direction, long id, String phone, String message, byte status, long time)
+            throws IOException {
+        if (segments.isEmpty()) throw new IOException("History is closed");
+        String number = StringUtil.normalizePhone(phone);
+        if (message.length() > MAX_TEXT_LENGTH) message = message.substring(0, MAX_TEXT_LENGTH);
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (!segment.fits(number, text)) {
+            segment.seal();
+            segment = new Segment(directory, segment.first + segment.count);
+            segment.open(true);
+            segments.add(segment);
+            removeExpired();
+        }
+        segment.append(direction, id, number, text, status, time);
+    }
+
+    /**
+     * The texts exchanged with a number in a time range, newest first
+     *
+     * @param from epoch milliseconds, inclusive
+     * @param to epoch milliseconds, inclusive
+     */
+    public List<Entry> find(String phone, long from, long to, int limit) {
+        String number = StringUtil.normalizePhone(phone);
+        List<Segment> candidates = new ArrayList<>();
+        List<Integer> heads = new ArrayList<>();
+        synchronized (this) {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                Segment segment = segments.get(i);
+                if (segment.count == 0 || segment.firstTime > to) continue;
+                if (segment.lastTime < from) break;
+                int[] chain = segment.chains.get(number);
+                if (chain == null) continue;
+                candidates.add(segment);
+                heads.add(chain[1]);
+            }
+        }
+
+        // Segments stay mapped after they were removed, so the walk needs no lock
+        List<Entry> entries = new ArrayList<>(Math.min(limit, 64));
+        for (int i = 0; i < candidates.size(); i++) {
+            Segment segment = candidates.get(i);
+            int record = heads.get(i);
+            while (record >= 0 && entries.size() < limit) {
+                long time = segment.time(record);
+                if (time < from) return entries;
+                if (time <= to) entries.add(segment.entry(record));
+                record = segment.previous(record);
+            }
+            if (entries.size() == limit) break;
+        }
+        return entries;
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.seal();
+        }
+        segments.clear();
+    }
+
+    private void removeExpired() {
+        long maxSize = GatewayConfig.getIntPreference(preferences, "txtHistoryMaxSize", 256) * 1024L * 1024L;
+        long maxAge = TimeUnit.DAYS.toMillis(GatewayConfig.getIntPreference(preferences, "txtHistoryMaxAge", 90));
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size();
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (total <= maxSize && now - oldest.lastTime <= maxAge) break;
+            Log.i(TAG, "Removing " + oldest.count + " texts up to " + oldest.lastTime);
+            segments.remove(0);
+            total -= oldest.size();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * A records file and its heap. Only the history's writer changes them, under the history
+     * lock; readers see the records up to the published count.
+     */
+    private static class Segment {
+        final long first;
+        final File records;
+        final File heap;
+        MappedByteBuffer recordMap;
+        MappedByteBuffer heapMap;
+        /** The writer's view of the heap, positioned at its end */
+        ByteBuffer heapWriter;
+        volatile int count;
+        int heapSize;
+        volatile long firstTime;
+        volatile long lastTime;
+        /** normalized number to {heap offset of the number, index of its newest record} */
+        final Map<String, int[]> chains = new HashMap<>();
+
+        Segment(File directory, long first) {
+            this.first = first;
+            String name = String.format(Locale.US, "%020d", first);
+            records = new File(directory, name + RECORDS_SUFFIX);
+            heap = new File(directory, name + HEAP_SUFFIX);
+        }
+
+        /**
+         * Map the files and index the numbers in them
+         *
+         * @param writable map them at full size for appending, otherwise trim them to what is used
+         */
+        void open(boolean writable) throws IOException {
+            RandomAccessFile recordFile = new RandomAccessFile(records, "rw");
+            RandomAccessFile heapFile = new RandomAccessFile(heap, "rw");
+            try {
+                recordMap = recordFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(recordFile.length(), (long) RECORDS_PER_SEGMENT * RECORD_SIZE));
+                heapMap = heapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(heapFile.length(), HEAP_SIZE));
+                scan();
+                if (writable) {
+                    recordMap = recordFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                            (long) RECORDS_PER_SEGMENT * RECORD_SIZE);
+                    heapMap = heapFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEAP_SIZE);
+                    heapWriter = heapMap.duplicate();
+                    heapWriter.position(heapSize);
+                } else if (recordFile.length() > (long) count * RECORD_SIZE || heapFile.length() > heapSize) {
+                    // Left at full size by the writer
+                    recordFile.setLength((long) count * RECORD_SIZE);
+                    heapFile.setLength(heapSize);
+                    recordMap = recordFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                            (long) count * RECORD_SIZE);
+                    heapMap = heapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, heapSize);
+                }
+            } finally {
+                // The mappings stay valid after the files are closed
+                recordFile.close();
+                heapFile.close();
+            }
+        }
+
+        /**
+         * Count the intact records and rebuild the heads of the numbers
+         */
+        private void scan() {
+            int recordLimit = recordMap.capacity() / RECORD_SIZE;
+            int heapLimit = heapMap.capacity();
+            Map<Integer, String> numbers = new HashMap<>();
+            int n = 0;
+            while (n < recordLimit) {
+                int base = n * RECORD_SIZE;
+                long time = recordMap.getLong(base);
+                int phone = recordMap.getInt(base + 16);
+                int text = recordMap.getInt(base + 20);
+                int previous = recordMap.getInt(base + 24);
+                if (time == 0 || !isEntry(phone, heapLimit) || !isEntry(text, heapLimit) || previous >= n) break;
+                String number = numbers.get(phone);
+                if (number == null) {
+                    number = string(phone);
+                    numbers.put(phone, number);
+                }
+                chains.put(number, new int[]{phone, n});
+                if (n == 0) firstTime = time;
+                lastTime = time;
+                heapSize = text + 4 + heapMap.getInt(text);
+                n++;
+            }
+            count = n;
+        }
+
+        private boolean isEntry(int offset, int heapLimit) {
+            if (offset < 0 || offset + 4 > heapLimit) return false;
+            int length = heapMap.getInt(offset);
+            return length >= 0 && length <= heapLimit - offset - 4;
+        }
+
+        boolean fits(String number, byte[] text) {
+            if (count == RECORDS_PER_SEGMENT) return false;
+            int needed = 4 + text.length;
+            if (!chains.containsKey(number)) needed += 4 + number.length();
+            return heapSize + needed <= HEAP_SIZE;
+        }
+
+        void append(byte direction, long id, String number, byte[] text, byte status, long time) {
+            int[] chain = chains.get(number);
+            int previous = -1;
+            if (chain == null) {
+                chain = new int[]{putString(number.getBytes(StandardCharsets.US_ASCII)), 0};
+                chains.put(number, chain);
+            } else {
+                previous = chain[1];
+            }
+            int textOffset = putString(text);
+
+            int base = count * RECORD_SIZE;
+            recordMap.putLong(base + 8, id);
+            recordMap.putInt(base + 16, chain[0]);
+            recordMap.putInt(base + 20, textOffset);
+            recordMap.putInt(base + 24, previous);
+            recordMap.put(base + 28, direction);
+            recordMap.put(base + 29, status);
+            // Written last, a zero time ends the segment when it is scanned
+            recordMap.putLong(base, time);
+
+            chain[1] = count;
+            if (count == 0) firstTime = time;
+            lastTime = time;
+            count++;
+        }
+
+        private int putString(byte[] bytes) {
+            int offset = heapSize;
+            heapWriter.putInt(bytes.length).put(bytes);
+            heapSize = heapWriter.position();
+            return offset;
+        }
+
+        long time(int record) {
+            return recordMap.getLong(record * RECORD_SIZE);
+        }
+
+        int previous(int record) {
+            return recordMap.getInt(record * RECORD_SIZE + 24);
+        }
+
+        Entry entry(int record) {
+            int base = record * RECORD_SIZE;
+            byte direction = recordMap.get(base + 28);
+            return new Entry(recordMap.getLong(base + 8), direction == OUTBOUND ? "out" : "in",
+                    string(recordMap.getInt(base + 16)), string(recordMap.getInt(base + 20)),
+                    recordMap.getLong(base),
+                    direction == OUTBOUND ? DeliveryStatusIndex.name(recordMap.get(base + 29)) : null);
+        }
+
+        private String string(int offset) {
+            ByteBuffer view = heapMap.duplicate();
+            view.position(offset);
+            byte[] bytes = new byte[view.getInt()];
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        long size() {
+            return (long) count * RECORD_SIZE + heapSize;
+        }
+
+        /**
+         * Stop appending, the next open trims the files
+         */
+        void seal() {
+            if (heapWriter == null) return;
+            recordMap.force();
+            heapMap.force();
+            heapWriter = null;
+        }
+
+        void delete() {
+            if (!records.delete() | !heap.delete()) {
+                Log.w(TAG, "Cannot delete segment " + first);
+            }
+        }
+    }
+
+    public static class Entry {
+        private long id;
+        private String direction;
+        private String phone;
+        private String message;
+        private long time;
+        private String status;
+
+        public Entry(long id, String direction, String phone, String message, long time, String status) {
+            this.id = id;
+            this.direction = direction;
+            this.phone = phone;
+            this.message = message;
+            this.time = time;
+            this.status = status;
+        }
+
+        /**
+         * @return the inbox sequence number of a received text, the outbox id of a sent one
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * @return in or out
+         */
+        public String getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return the normalized number
+         */
+        public String getPhone() {
+            return phone;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return epoch milliseconds the text was received or handed to the SmsManager
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the status a sent text was recorded with, see /status for the current one
+         */
+        public String getStatus() {
+            return status;
+        }
+    }
+}
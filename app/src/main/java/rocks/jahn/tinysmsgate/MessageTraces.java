@@ -0,0 +1,43 @@
+package rocks.jahn.tinysmsgate;
+
+/**
+ * The traces of outgoing and incoming messages, one pair of rings per process.
+ *
+ * Outgoing messages are traced under their outbox id, incoming ones under an id of the inbound
+ * ring carried by the {@link InboundSMS}.
+ */
+public class MessageTraces {
+    public static final int CAPACITY = 1024;
+
+    /** The send request was read */
+    public static final int ACCEPTED = 0;
+    /** The message is in the outbox */
+    public static final int QUEUED = 1;
+    /** The message was handed to the SmsManager */
+    public static final int DISPATCHED = 2;
+    /** The SENT broadcast arrived */
+    public static final int SENT = 3;
+    /** The DELIVERED broadcast arrived */
+    public static final int DELIVERED = 4;
+    private static final String[] OUTBOUND_STAGES = {"accepted", "queued", "dispatched", "sent", "delivered"};
+
+    /** The text was received */
+    public static final int RECEIVED = 0;
+    /** The webhook request was started */
+    public static final int FORWARDING = 1;
+    /** The webhook accepted the text */
+    public static final int FORWARDED = 2;
+    private static final String[] INBOUND_STAGES = {"received", "forwarding", "forwarded"};
+
+    private static final MessageTraces INSTANCE = new MessageTraces();
+
+    public final TraceRing outbound = new TraceRing(OUTBOUND_STAGES, CAPACITY);
+    public final TraceRing inbound = new TraceRing(INBOUND_STAGES, CAPACITY);
+
+    private MessageTraces() {
+    }
+
+    public static MessageTraces get() {
+        return INSTANCE;
+    }
+}
@@ -0,0 +1,130 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.Arrays;
+
+/**
+ * The gateway's counters and latency histograms, one set per process.
+ *
+ * Everything is sized when the process starts, recording only adds to striped counters and
+ * fixed histogram buckets and never allocates. HTTP requests are counted by route and status
+ * code, the routes are registered by name when the route table is built and addressed by index
+ * afterwards.
+ */
+public class Metrics {
+    public static final int MAX_ROUTES = 32;
+    /** Status codes counted separately, all others are counted as "other" */
+    private static final int[] CODES = {200, 202, 400, 403, 404, 405, 411, 413, 429, 500, 503};
+    private static final int OTHER_CODE = CODES.length;
+    private static final byte[] CODE_SLOTS = new byte[600];
+    /** Bounds for HTTP handling times in microseconds, 100 µs to 10 s */
+    private static final long[] MICROS = {
+            100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000
+    };
+
+    static {
+        Arrays.fill(CODE_SLOTS, (byte) OTHER_CODE);
+        for (int i = 0; i < CODES.length; i++) {
+            CODE_SLOTS[CODES[i]] = (byte) i;
+        }
+    }
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final String[] routes = new String[MAX_ROUTES];
+    private int routeCount;
+    private final StripedCounter requests = new StripedCounter(MAX_ROUTES * (CODES.length + 1));
+    private final LatencyHistogram[] requestLatency = new LatencyHistogram[MAX_ROUTES];
+    public final StripedCounter bytesReceived = new StripedCounter();
+    public final StripedCounter bytesSent = new StripedCounter();
+    public final StripedCounter smsSent = new StripedCounter();
+    public final StripedCounter smsSendFailed = new StripedCounter();
+    public final StripedCounter smsDelivered = new StripedCounter();
+    public final StripedCounter smsUndelivered = new StripedCounter();
+    /** Parts of sent messages, each one is paid for */
+    public final StripedCounter segmentsDispatched = new StripedCounter();
+    public final StripedCounter segmentsSent = new StripedCounter();
+    public final StripedCounter segmentsSendFailed = new StripedCounter();
+    public final StripedCounter smsReceived = new StripedCounter();
+    public final StripedCounter forwardFailed = new StripedCounter();
+
+    private Metrics() {
+        for (int i = 0; i < MAX_ROUTES; i++) {
+            requestLatency[i] = new LatencyHistogram(MICROS);
+        }
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param name label of the route, the same name always gets the same index
+     * @return index to record requests of the route with, the last one is shared when all are taken
+     */
+    public synchronized int route(String name) {
+        for (int i = 0; i < routeCount; i++) {
+            if (routes[i].equals(name)) return i;
+        }
+        if (routeCount < MAX_ROUTES - 1) {
+            routes[routeCount] = name;
+            return routeCount++;
+        }
+        routes[MAX_ROUTES - 1] = "other";
+        routeCount = MAX_ROUTES;
+        return MAX_ROUTES - 1;
+    }
+
+    /**
+     * Count a handled request
+     *
+     * @param nanos time from receiving the request to having the response ready
+     */
+    public void request(int route, int code, long nanos) {
+        int slot = code >= 0 && code < CODE_SLOTS.length ? CODE_SLOTS[code] : OTHER_CODE;
+        requests.add(route * (CODES.length + 1) + slot, 1);
+        requestLatency[route].record(nanos / 1000);
+    }
+
+    public void write(PrometheusText text) {
+        String[] names;
+        synchronized (this) {
+            names = Arrays.copyOf(routes, routeCount);
+        }
+        text.header("tinysmsgate_http_requests_total", "counter", "HTTP requests by route and status code.");
+        for (int route = 0; route < names.length; route++) {
+            for (int slot = 0; slot <= CODES.length; slot++) {
+                long count = requests.get(route * (CODES.length + 1) + slot);
+                if (count == 0) continue;
+                text.sample("tinysmsgate_http_requests_total", "route=\"" + names[route] + "\",code=\""
+                        + (slot == OTHER_CODE ? "other" : String.valueOf(CODES[slot])) + "\"", count);
+            }
+        }
+        text.header("tinysmsgate_http_request_duration_seconds", "histogram",
+                "Time from reading an HTTP request to having its response ready.");
+        for (int route = 0; route < names.length; route++) {
+            if (requestLatency[route].getCount() == 0) continue;
+            text.histogram("tinysmsgate_http_request_duration_seconds", "route=\"" + names[route] + "\"",
+                    requestLatency[route], 1e6);
+        }
+        text.counter("tinysmsgate_http_received_bytes_total", "Bytes read from HTTP connections.",
+                bytesReceived.get());
+        text.counter("tinysmsgate_http_sent_bytes_total", "Bytes written to HTTP connections.",
+                bytesSent.get());
+        text.counter("tinysmsgate_sms_sent_total", "Messages the radio reported as sent.", smsSent.get());
+        text.counter("tinysmsgate_sms_send_failed_total", "Messages the radio failed to send.",
+                smsSendFailed.get());
+        text.counter("tinysmsgate_sms_delivered_total", "Delivery reports of success.", smsDelivered.get());
+        text.counter("tinysmsgate_sms_undelivered_total", "Delivery reports of failure.",
+                smsUndelivered.get());
+        text.counter("tinysmsgate_sms_segments_dispatched_total", "Message parts handed to the SmsManager.",
+                segmentsDispatched.get());
+        text.counter("tinysmsgate_sms_segments_sent_total", "Message parts the radio reported as sent.",
+                segmentsSent.get());
+        text.counter("tinysmsgate_sms_segments_send_failed_total", "Message parts the radio failed to send.",
+                segmentsSendFailed.get());
+        text.counter("tinysmsgate_sms_received_total", "Texts received.", smsReceived.get());
+        text.counter("tinysmsgate_forward_failed_total", "Texts whose forwarding attempt failed.",
+                forwardFailed.get());
+    }
+}
@@ -0,0 +1,119 @@
+package rocks.jahn.tinysmsgate;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import rocks.jahn.tinysmsgate.lib.SmsPdu;
+
+/**
+ * Joins the parts of concatenated texts that arrive in separate broadcasts.
+ *
+ * Parts are keyed by sender, reference number and part count. At most {@link #MAX_PENDING}
+ * texts are waiting for parts at a time, and none for longer than {@link #PART_TIMEOUT}
+ * milliseconds; a text pushed out by either limit is let through with the parts it has rather
+ * than lost. Parts are kept in memory only, so a text whose parts straddle a restart of the
+ * process arrives as fragments. Not thread safe, the receive worker is the only user.
+ */
+public class MultipartAssembler {
+    private static final String TAG = "MultipartAssembler";
+    public static final int MAX_PENDING = 32;
+    public static final long PART_TIMEOUT = 5 * 60 * 1000L;
+
+    /** In order of the first part's arrival */
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * @param receivedAt wall clock time of the broadcast, milliseconds
+     * @param receivedNanos {@link TraceRing#now()} at the broadcast
+     * @param expired gets the texts pushed out to make room
+     * @return the whole text if this was its last missing part, otherwise null
+     */
+    public Text add(String from, SmsPdu.Concat concat, String part, long receivedAt, long receivedNanos,
+                    List<Text> expired) {
+        String key = from + '\n' + concat.reference + '\n' + concat.count;
+        Pending text = pending.get(key);
+        if (text == null) {
+            if (pending.size() == MAX_PENDING) {
+                Iterator<Pending> eldest = pending.values().iterator();
+                expired.add(eldest.next().join());
+                eldest.remove();
+            }
+            text = new Pending(from, concat.count, receivedAt, receivedNanos);
+            pending.put(key, text);
+        }
+        if (text.parts[concat.sequence - 1] == null) {
+            text.parts[concat.sequence - 1] = part;
+            text.received++;
+        }
+        if (text.received < text.parts.length) return null;
+        pending.remove(key);
+        return text.join();
+    }
+
+    /**
+     * Remove the texts that waited too long for their remaining parts
+     */
+    public List<Text> expire(long now) {
+        List<Text> expired = new ArrayList<>();
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Pending text = it.next();
+            if (now - text.receivedAt < PART_TIMEOUT) break;
+            expired.add(text.join());
+            it.remove();
+        }
+        return expired;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    private static class Pending {
+        final String from;
+        final String[] parts;
+        final long receivedAt;
+        final long receivedNanos;
+        int received;
+
+        Pending(String from, int count, long receivedAt, long receivedNanos) {
+            this.from = from;
+            this.parts = new String[count];
+            this.receivedAt = receivedAt;
+            this.receivedNanos = receivedNanos;
+        }
+
+        Text join() {
+            StringBuilder sb = new StringBuilder(parts.length * 160);
+            for (String part : parts) {
+                if (part != null) sb.append(part);
+            }
+            if (received < parts.length) {
+                Log.w(TAG, "Giving up on " + (parts.length - received) + " of " + parts.length
+                        + " parts of a text from " + from);
+            }
+            return new Text(from, sb.toString(), receivedAt, receivedNanos);
+        }
+    }
+
+    /**
+     * A text put together from its parts, with the time its first part arrived
+     */
+    public static class Text {
+        public final String from;
+        public final String message;
+        public final long receivedAt;
+        public final long receivedNanos;
+
+        public Text(String from, String message, long receivedAt, long receivedNanos) {
+            this.from = from;
+            this.message = message;
+            this.receivedAt = receivedAt;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
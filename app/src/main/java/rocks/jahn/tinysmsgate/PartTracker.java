@@ -0,0 +1,82 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Joins the SENT and DELIVERED broadcasts of the parts of a multipart message into one outcome:
+ * the message is sent once all of its parts are and failed with the first part that fails, and
+ * likewise for delivery.
+ *
+ * Parts are counted in memory for at most {@link #MAX_TRACKED} messages, the oldest are dropped
+ * first. A message whose count was dropped, or whose broadcasts straddle a restart of the
+ * server, never completes and keeps the status it had. Calls come from the broadcast receivers
+ * on the main thread, the methods are synchronized all the same.
+ */
+public class PartTracker {
+    public static final int MAX_TRACKED = 4096;
+
+    /** More parts to come, or the outcome was reported already */
+    public static final int PENDING = 0;
+    public static final int COMPLETE = 1;
+    public static final int FAILED = 2;
+
+    private final LinkedHashMap<Long, Parts> messages = new LinkedHashMap<Long, Parts>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Parts> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    /**
+     * Count the SENT broadcast of a part
+     *
+     * @param parts number of parts of the message
+     * @return the outcome for the whole message
+     */
+    public synchronized int sent(long id, int parts, boolean success) {
+        Parts message = get(id);
+        if (message.sendOutcome != PENDING) return PENDING;
+        if (!success) {
+            // No delivery report will make up for the missing part
+            message.sendOutcome = FAILED;
+            message.deliveryOutcome = FAILED;
+            return FAILED;
+        }
+        if (++message.sent < parts) return PENDING;
+        message.sendOutcome = COMPLETE;
+        if (message.deliveryOutcome != PENDING) messages.remove(id);
+        return COMPLETE;
+    }
+
+    /**
+     * Count the DELIVERED broadcast of a part
+     *
+     * @param parts number of parts of the message
+     * @return the outcome for the whole message
+     */
+    public synchronized int delivered(long id, int parts, boolean success) {
+        Parts message = get(id);
+        if (message.deliveryOutcome != PENDING) return PENDING;
+        if (success && ++message.delivered < parts) return PENDING;
+        message.deliveryOutcome = success ? COMPLETE : FAILED;
+        if (message.sendOutcome != PENDING) messages.remove(id);
+        return message.deliveryOutcome;
+    }
+
+    private Parts get(long id) {
+        Parts message = messages.get(id);
+        if (message == null) {
+            message = new Parts();
+            messages.put(id, message);
+        }
+        return message;
+    }
+
+    private static class Parts {
+        int sent;
+        int delivered;
+        int sendOutcome = PENDING;
+        int deliveryOutcome = PENDING;
+    }
+}
@@ -0,0 +1,75 @@
+package rocks.jahn.tinysmsgate;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4.
+ *
+ * Label values are written as given, callers only pass names and numbers that need no escaping.
+ */
+public class PrometheusText {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder out = new StringBuilder(8192);
+
+    /**
+     * Write the HELP and TYPE lines, once before the samples of a metric
+     *
+     * @param type counter, gauge or histogram
+     */
+    public PrometheusText header(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels name="value" pairs separated by commas, null for none
+     */
+    public PrometheusText sample(String name, String labels, long value) {
+        name(name, labels).append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText sample(String name, String labels, double value) {
+        name(name, labels).append(value).append('\n');
+        return this;
+    }
+
+    public PrometheusText counter(String name, String help, long value) {
+        return header(name, "counter", help).sample(name, null, value);
+    }
+
+    public PrometheusText gauge(String name, String help, long value) {
+        return header(name, "gauge", help).sample(name, null, value);
+    }
+
+    /**
+     * Write the cumulative buckets, sum and count of a histogram, without the header
+     *
+     * @param perUnit recorded values per exported unit, 1000 for milliseconds exported as seconds
+     */
+    public PrometheusText histogram(String name, String labels, LatencyHistogram histogram, double perUnit) {
+        long[] bounds = histogram.getBounds();
+        String prefix = labels == null ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            cumulative += histogram.getBucketCount(i);
+            sample(name + "_bucket", prefix + "le=\"" + bounds[i] / perUnit + "\"", cumulative);
+        }
+        cumulative += histogram.getBucketCount(bounds.length);
+        sample(name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        sample(name + "_sum", labels, histogram.getSum() / perUnit);
+        sample(name + "_count", labels, cumulative);
+        return this;
+    }
+
+    private StringBuilder name(String name, String labels) {
+        out.append(name);
+        if (labels != null) out.append('{').append(labels).append('}');
+        return out.append(' ');
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
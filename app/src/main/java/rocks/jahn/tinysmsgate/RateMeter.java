@@ -0,0 +1,42 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events over the last minute in one-second slots, safe to mark from any thread.
+ *
+ * A slot is reset by the first event of a new second that lands on it, so the count is exact
+ * to within the second that is currently filling up.
+ */
+public class RateMeter {
+    private static final int SLOTS = 60;
+
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long events) {
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % SLOTS);
+        long current = seconds.get(slot);
+        if (current != second && seconds.compareAndSet(slot, current, second)) {
+            counts.set(slot, 0);
+        }
+        counts.addAndGet(slot, events);
+    }
+
+    /**
+     * @return events in the last 60 seconds
+     */
+    public long getLastMinute() {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (now - seconds.get(slot) < SLOTS) total += counts.get(slot);
+        }
+        return total;
+    }
+}
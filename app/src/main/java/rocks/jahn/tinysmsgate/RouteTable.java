@@ -0,0 +1,81 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Maps method and path to a handler, built once and then only read.
+ *
+ * Exact paths are one hash lookup in the map of the request's method, prefixes are only tried
+ * when no exact path matches, longest first. A path added again replaces the earlier handler.
+ *
+ * @param <H> the handler type
+ */
+public class RouteTable<H> {
+    private final Map<String, H>[] exact;
+    private final List<String>[] prefixes;
+    private final List<H>[] prefixHandlers;
+
+    private RouteTable(Builder<H> builder) {
+        exact = builder.exact;
+        prefixes = builder.prefixes;
+        prefixHandlers = builder.prefixHandlers;
+    }
+
+    /**
+     * @return null if no route matches
+     */
+    public H find(NanoHTTPD.Method method, String uri) {
+        int m = method.ordinal();
+        H handler = exact[m].get(uri);
+        if (handler != null) return handler;
+        List<String> candidates = prefixes[m];
+        for (int i = 0; i < candidates.size(); i++) {
+            if (uri.startsWith(candidates.get(i))) return prefixHandlers[m].get(i);
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static class Builder<H> {
+        private final Map<String, H>[] exact = new Map[NanoHTTPD.Method.values().length];
+        private final List<String>[] prefixes = new List[exact.length];
+        private final List<H>[] prefixHandlers = new List[exact.length];
+
+        public Builder() {
+            for (int i = 0; i < exact.length; i++) {
+                exact[i] = new HashMap<>();
+                prefixes[i] = new ArrayList<>();
+                prefixHandlers[i] = new ArrayList<>();
+            }
+        }
+
+        public Builder<H> add(NanoHTTPD.Method method, String path, H handler) {
+            exact[method.ordinal()].put(path, handler);
+            return this;
+        }
+
+        public Builder<H> addPrefix(NanoHTTPD.Method method, String prefix, H handler) {
+            List<String> list = prefixes[method.ordinal()];
+            List<H> handlers = prefixHandlers[method.ordinal()];
+            int existing = list.indexOf(prefix);
+            if (existing >= 0) {
+                handlers.set(existing, handler);
+                return this;
+            }
+            int i = 0;
+            while (i < list.size() && list.get(i).length() >= prefix.length()) i++;
+            list.add(i, prefix);
+            handlers.add(i, handler);
+            return this;
+        }
+
+        public RouteTable<H> build() {
+            return new RouteTable<>(this);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package rocks.jahn.tinysmsgate;
+
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import rocks.jahn.tinysmsgate.lib.SmsEncoding;
+
+/**
+ * Streams a batch of {"phone": ..., "message": ..., "priority": ...} items into the outbox, the
+ * priority is optional.
+ *
+ * The body is either a JSON array or newline delimited JSON objects (NDJSON). Items are read
+ * and appended one at a time, and the log is synced every {@link #SYNC_INTERVAL} items, so
+ * neither the request nor the parsed items are ever held in memory as a whole.
+ *
+ * The result lists an id and the expected segments and encoding, or an error, for every item, by
+ * index: {"code":"SMSgate","results":[{"index":0,"id":...,"segments":1,"encoding":"gsm7"},
+ * {"index":1,"error":"..."}],"accepted":1,"rejected":1}
+ * If the body turns out to be malformed, the items read before that point are still queued
+ * and the result carries an additional "error". If the outbox fails, reading stops at that item:
+ * the items listed with an id are queued and will be sent, an item that could not be appended
+ * has an "error", and so does the result.
+ */
+class SMSBatch {
+    private static final String TAG = "SMSBatch";
+    private static final int SYNC_INTERVAL = 256;
+
+    private final SMSOutbox outbox;
+    private final DeliveryStatusIndex statusIndex;
+    private final SmsEncoding.Plan plan = new SmsEncoding.Plan();
+    private int accepted;
+    private int rejected;
+    private String error;
+    private boolean outboxFailed;
+
+    SMSBatch(SMSOutbox outbox, DeliveryStatusIndex statusIndex) {
+        this.outbox = outbox;
+        this.statusIndex = statusIndex;
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the parse error, null if the whole body was read
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return true if reading stopped because the outbox could not be written
+     */
+    public boolean isOutboxFailed() {
+        return outboxFailed;
+    }
+
+    /**
+     * Read, validate and queue every item of the body
+     *
+     * @return the JSON result
+     */
+    public byte[] queue(InputStream body) throws IOException {
+        TraceRing traces = MessageTraces.get().outbound;
+        long acceptedAt = TraceRing.now();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name("code").value("SMSgate");
+        writer.name("results").beginArray();
+
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        // Lenient mode accepts several top-level values, which is what NDJSON is
+        reader.setLenient(true);
+        long unsynced = 0;
+        int index = 0;
+        try {
+            JsonToken first = reader.peek();
+            boolean array = first == JsonToken.BEGIN_ARRAY;
+            if (array) reader.beginArray();
+
+            while (!outboxFailed && (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT)) {
+                String phone = null;
+                String message = null;
+                String priorityName = null;
+                String itemError = null;
+                if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER) {
+                            if ("phone".equals(name)) {
+                                phone = reader.nextString();
+                                continue;
+                            } else if ("message".equals(name)) {
+                                message = reader.nextString();
+                                continue;
+                            } else if ("priority".equals(name)) {
+                                priorityName = reader.nextString();
+                                continue;
+                            }
+                        }
+                        reader.skipValue();
+                    }
+                    reader.endObject();
+                    itemError = SMSOutbox.validate(phone, message);
+                    if (itemError == null && SMSOutbox.priorityOf(priorityName) < 0) {
+                        itemError = "Unknown priority.";
+                    }
+                } else {
+                    reader.skipValue();
+                    itemError = "Expected an object.";
+                }
+
+                writer.beginObject();
+                writer.name("index").value(index++);
+                SMSOutbox.Entry entry = null;
+                if (itemError == null) {
+                    try {
+                        entry = outbox.append(phone, message, SMSOutbox.priorityOf(priorityName));
+                    } catch (IOException e) {
+                        itemError = "Outbox unavailable: " + e.getMessage();
+                        outboxFailure(index - 1, e);
+                    }
+                }
+                if (entry != null) {
+                    unsynced = entry.endOffset;
+                    statusIndex.update(entry.id, DeliveryStatusIndex.QUEUED, 0);
+                    traces.begin(entry.id, acceptedAt);
+                    traces.mark(entry.id, MessageTraces.QUEUED);
+                    SmsEncoding.plan(message, plan, false);
+                    writer.name("id").value(entry.id);
+                    writer.name("segments").value(plan.segments);
+                    writer.name("encoding").value(SMSGateWebServer.encodingName(plan.encoding));
+                    accepted++;
+                    if (accepted % SYNC_INTERVAL == 0) {
+                        try {
+                            outbox.sync(unsynced);
+                            unsynced = 0;
+                        } catch (IOException e) {
+                            outboxFailure(index - 1, e);
+                        }
+                    }
+                } else {
+                    writer.name("error").value(itemError);
+                    rejected++;
+                }
+                writer.endObject();
+            }
+            if (array && !outboxFailed) reader.endArray();
+        } catch (IllegalStateException | IOException e) {
+            // Bad JSON, a truncated body or the client going away
+            error = "Malformed batch at item " + index + ": " + e.getMessage();
+        }
+        if (unsynced > 0 && !outboxFailed) {
+            try {
+                outbox.sync(unsynced);
+            } catch (IOException e) {
+                outboxFailure(index - 1, e);
+            }
+        }
+
+        writer.endArray();
+        writer.name("accepted").value(accepted);
+        writer.name("rejected").value(rejected);
+        if (error != null) writer.name("error").value(error);
+        writer.endObject();
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    private void outboxFailure(int index, IOException e) {
+        Log.e(TAG, e.getMessage(), e);
+        outboxFailed = true;
+        error = "Outbox failure at item " + index + ": " + e.getMessage();
+    }
+}
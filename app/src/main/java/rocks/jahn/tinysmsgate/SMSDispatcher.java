@@ -0,0 +1,161 @@
+package rocks.jahn.tinysmsgate;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread draining the {@link SMSOutbox} into the SmsManagers of the {@link SimPool}, at
+ * the pace the {@link SendScheduler} allows
+ */
+public class SMSDispatcher extends Thread {
+    private static final String TAG = "SMSDispatcher";
+    private static final long POLL_INTERVAL = 500;
+
+    private final SMSOutbox outbox;
+    private final SendScheduler scheduler;
+    private final DeliveryStatusIndex statusIndex;
+    private final DeliveryReportNotifier reportNotifier;
+    private final SimPool sims;
+    private final Context context;
+    private volatile boolean running = true;
+    /**
+     * Request code of the next PendingIntent. Starting from the clock keeps it clear of the
+     * codes of a previous run, whose intents may still be waiting for a delivery report, unless
+     * that run used more than one per millisecond.
+     */
+    private int nextRequestCode = (int) System.currentTimeMillis();
+
+    public SMSDispatcher(SMSOutbox outbox, SendScheduler scheduler, DeliveryStatusIndex statusIndex, DeliveryReportNotifier reportNotifier,
+                         SimPool sims, Context context) {
+        super("SMSDispatcher");
+        this.outbox = outbox;
+        this.scheduler = scheduler;
+        this.statusIndex = statusIndex;
+        this.reportNotifier = reportNotifier;
+        this.sims = sims;
+        this.context = context;
+    }
+
+    /**
+     * Stop after the current message. The thread is not interrupted, an interrupt during
+     * FileChannel I/O would close the outbox log under everyone else.
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            SMSOutbox.Entry entry;
+            try {
+                entry = scheduler.next(outbox, POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+                break;
+            }
+            if (entry == null) continue;
+
+            SimPool.Sim sim;
+            try {
+                sim = awaitSim(entry);
+            } catch (InterruptedException e) {
+                break;
+            }
+            // Not acknowledged when shutting down, so it is sent after the next start
+            if (sim == null) break;
+
+            byte status;
+            try {
+                int parts = sendSms(entry, sim);
+                Metrics.get().segmentsDispatched.add(parts);
+                scheduler.markSegments(parts);
+                MessageTraces.get().outbound.mark(entry.id, MessageTraces.DISPATCHED);
+                status = DeliveryStatusIndex.DISPATCHED;
+                statusIndex.update(entry.id, status, 0);
+            } catch (RuntimeException e) {
+                // Invalid number, missing permission... retrying will not help
+                Log.e(TAG, "Send failed: " + entry.id + ", " + e.getMessage(), e);
+                sims.result(sim.subscriptionId, false);
+                status = DeliveryStatusIndex.FAILED;
+                statusIndex.update(entry.id, status, 0);
+                reportNotifier.report(entry.id, entry.phone, status, 0);
+            }
+            try {
+                MessageHistory.get(context).add(MessageHistory.OUTBOUND, entry.id, entry.phone, entry.message,
+                        status, System.currentTimeMillis());
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+
+            try {
+                outbox.ack(entry);
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+        Log.i(TAG, "Dispatcher stopped, " + (outbox.size() + scheduler.getDeferred()) + " messages left in queue");
+    }
+
+    /**
+     * Wait until a SIM may take the message
+     *
+     * @return null if the dispatcher was shut down meanwhile
+     */
+    private SimPool.Sim awaitSim(SMSOutbox.Entry entry) throws InterruptedException {
+        while (running) {
+            SimPool.Sim sim = sims.select(entry.phone, entry.parts);
+            if (sim != null) return sim;
+            long wait = Math.min(sims.getWait(entry.phone, entry.parts), TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL));
+            TimeUnit.NANOSECONDS.sleep(Math.max(wait, TimeUnit.MILLISECONDS.toNanos(1)));
+        }
+        return null;
+    }
+
+    /**
+     * Send with SENT and DELIVERED broadcasts that carry the message id, one pair per part when
+     * the text does not fit a single segment. The SmsManager splits the text itself, it knows
+     * which national language tables the carrier allows.
+     *
+     * @return the number of parts
+     */
+    private int sendSms(SMSOutbox.Entry entry, SimPool.Sim sim) {
+        ArrayList<String> parts = sim.manager.divideMessage(entry.message);
+        int count = Math.max(1, parts.size());
+        ArrayList<PendingIntent> sentIntents = new ArrayList<>(count);
+        ArrayList<PendingIntent> deliveryIntents = new ArrayList<>(count);
+        for (int part = 0; part < count; part++) {
+            sentIntents.add(pendingIntent(SMSGateWebServer.SENT, entry, sim, part, count));
+            deliveryIntents.add(pendingIntent(SMSGateWebServer.DELIVERED, entry, sim, part, count));
+        }
+        if (count == 1) {
+            sim.manager.sendTextMessage(entry.phone, null, entry.message, sentIntents.get(0), deliveryIntents.get(0));
+        } else {
+            sim.manager.sendMultipartTextMessage(entry.phone, null, parts, sentIntents, deliveryIntents);
+        }
+        return count;
+    }
+
+    /**
+     * The request code makes each PendingIntent distinct, otherwise Android would hand out the
+     * same one, extras of the first message included, for every message
+     */
+    private PendingIntent pendingIntent(String action, SMSOutbox.Entry entry, SimPool.Sim sim, int part, int parts) {
+        Intent intent = new Intent(action)
+                .setPackage(context.getPackageName())
+                .putExtra(SMSGateWebServer.KEY_ID, entry.id)
+                .putExtra(SMSGateWebServer.KEY_PHONE, entry.phone)
+                .putExtra(SMSGateWebServer.KEY_SUBSCRIPTION, sim.subscriptionId)
+                .putExtra(SMSGateWebServer.KEY_PART, part)
+                .putExtra(SMSGateWebServer.KEY_PARTS, parts);
+        return PendingIntent.getBroadcast(context, nextRequestCode++, intent, PendingIntent.FLAG_ONE_SHOT);
+    }
+}
@@ -1,97 +1,381 @@
 package rocks.jahn.tinysmsgate;
 
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import android.content.Context;
-import android.os.AsyncTask;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.google.gson.stream.JsonWriter;
+
+
+/**
+ * Forwards received texts to the configured URL.
+ *
+ * Messages are collected by a single worker thread: it waits for the first message, then keeps
+ * collecting for up to txtForwardLinger milliseconds or until txtForwardBatchSize messages are
+ * in hand. In the "JSON" format the whole batch goes out as one POST with a JSON array body,
+ * in the "FORM" format every message is still sent on its own as phone=...&message=... over
+ * GET or POST, as before.
+ *
+ * Texts that cannot be delivered go to the {@link ForwardSpool}, where a second worker retries
+ * them with exponential backoff until they are older than txtSpoolMaxAge hours or their sender
+ * failed txtSpoolMaxAttempts times in a row.
+ */
+public class SMSForwarder implements Runnable {
+    public static final String FORMAT_JSON = "JSON";
+    public static final String FORMAT_FORM = "FORM";
 
-public class SMSForwarder extends AsyncTask<Void, Void, String> {
-    Context context;
-    String from;
-    String message;
-    String to;
-    String method;
-    
-    public SMSForwarder(Context context, String from, String message, String to, String method) {
+    private static SMSForwarder instance;
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedBlockingQueue<InboundSMS> queue = new LinkedBlockingQueue<>();
+    private final ForwardSpool spool;
+    private final WebhookClient client = new WebhookClient(4, 64);
+    private final LatencyHistogram forwardLatency = new LatencyHistogram();
+
+    private SMSForwarder(Context context) {
         this.context = context;
-        this.from = from;
-        this.message = message;
-        this.to = to;
-        this.method = method;
+        this.preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        this.spool = new ForwardSpool(new File(context.getFilesDir(), "forward.spool"));
     }
-    
-    @Override
-    protected String doInBackground(Void... params) {
-        return sendMessage(method, to, from, message);
+
+    /**
+     * The forwarder of this process, its worker thread is started on first use
+     */
+    public static synchronized SMSForwarder get(Context context) {
+        if (instance == null) {
+            instance = new SMSForwarder(context.getApplicationContext());
+            Thread worker = new Thread(instance, "SMSForwarder");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        return instance;
     }
 
-    @Override
-    protected void onPostExecute(String res) {
-        Toast.makeText(context, res, Toast.LENGTH_SHORT).show();
+    public void forward(InboundSMS sms) {
+        queue.add(sms);
+    }
+
+    public ForwardSpool getSpool() {
+        return spool;
     }
-    
-    public String sendMessage(String method, String to, String from, String message) {
+
+    @Override
+    public void run() {
         try {
-            message = URLEncoder.encode(message, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            Log.v(TinySMSGate.tag, "Gross.");
+            spool.open();
+        } catch (IOException e) {
+            Log.e(TinySMSGate.tag, "Cannot open the forward spool, failed texts are kept in memory only", e);
         }
-        String fullData = "phone=" + from + "&message=" + message;
-        if(method.equals("POST")) {
+        Thread retry = new Thread(new RetryWorker(), "SMSForwarder-retry");
+        retry.setDaemon(true);
+        retry.start();
+
+        List<InboundSMS> batch = new ArrayList<>();
+        while (true) {
             try {
-                URL url = new URL(to);
-                try {
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("POST");
-                    connection.setRequestProperty("User-agent", "TinySMSGate");
-                    connection.setDoOutput(true);
-                    DataOutputStream output = new DataOutputStream(connection.getOutputStream());
-                    output.writeBytes(fullData);
-                    output.flush();
-                    output.close();
-                    
-                    int responseCode = connection.getResponseCode();
-                    switch(responseCode) {
-                        case 200:
-                            return "Tiny SMS Gate forwarded a text.";
-                        default:
-                            return "Tiny SMS Gate forwarded a text, but it may have failed. Code " + responseCode;
-                    }
-                } catch (IOException e) {
-                    return "Tiny SMS Gate tried to forward an SMS, but could not connect.";
+                batch.add(queue.take());
+                int batchSize = GatewayConfig.getIntPreference(preferences, "txtForwardBatchSize", 50);
+                long linger = GatewayConfig.getIntPreference(preferences, "txtForwardLinger", 500);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 && queue.isEmpty()) break;
+                    InboundSMS next = queue.poll(Math.max(wait, 0), TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
                 }
-            } catch (MalformedURLException e) {
-                return "Tiny SMS Gate tried to forward an SMS, but the URL is malformed.";
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                deliver(batch);
+            } catch (RuntimeException e) {
+                Log.e(TinySMSGate.tag, e.getMessage(), e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forward a fresh batch. Texts from senders that still have texts in the spool go straight
+     * to the spool behind those, and whatever fails is spooled for the retry worker.
+     */
+    private void deliver(List<InboundSMS> batch) {
+        List<InboundSMS> failed = new ArrayList<>();
+        List<InboundSMS> direct = new ArrayList<>(batch.size());
+        for (InboundSMS sms : batch) {
+            if (spool.has(sms.from)) {
+                failed.add(sms);
+            } else {
+                direct.add(sms);
             }
+        }
+
+        Outcome outcome = null;
+        String to = preferences.getString("txtUrl", "");
+        String format = preferences.getString("lstForwardFormat", FORMAT_FORM);
+        if (direct.isEmpty()) {
+            // nothing to send now
+        } else if (FORMAT_JSON.equals(format)) {
+            outcome = sendBatch(to, direct);
+            if (!outcome.delivered) failed.addAll(direct);
         } else {
+            // Senders are forwarded in parallel, each sender's texts one after the other
+            final String method = preferences.getString("lstSendMethod", "POST");
+            final String url = to;
+            Map<String, List<InboundSMS>> bySender = new LinkedHashMap<>();
+            for (InboundSMS sms : direct) {
+                List<InboundSMS> texts = bySender.get(sms.from);
+                if (texts == null) {
+                    texts = new ArrayList<>();
+                    bySender.put(sms.from, texts);
+                }
+                texts.add(sms);
+            }
+            Map<String, Future<List<InboundSMS>>> results = new LinkedHashMap<>();
+            for (Map.Entry<String, List<InboundSMS>> sender : bySender.entrySet()) {
+                final List<InboundSMS> texts = sender.getValue();
+                results.put(sender.getKey(), client.submit(new Callable<List<InboundSMS>>() {
+                    @Override
+                    public List<InboundSMS> call() {
+                        for (int i = 0; i < texts.size(); i++) {
+                            if (!sendMessage(method, url, texts.get(i)).delivered) {
+                                return texts.subList(i, texts.size());
+                            }
+                        }
+                        return Collections.emptyList();
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<List<InboundSMS>>> result : results.entrySet()) {
+                try {
+                    failed.addAll(result.getValue().get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // Which of the sender's texts went out is unknown, spool them all
+                    Log.e(TinySMSGate.tag, e.getMessage(), e);
+                    failed.addAll(bySender.get(result.getKey()));
+                }
+            }
+            int forwarded = batch.size() - failed.size();
+            outcome = new Outcome(failed.isEmpty(), batch.size() == 1
+                    ? (forwarded == 1 ? "Tiny SMS Gate forwarded a text." : "Tiny SMS Gate could not forward a text, it will try again.")
+                    : "Tiny SMS Gate forwarded " + forwarded + " of " + batch.size() + " texts.");
+        }
+
+        if (!failed.isEmpty()) {
             try {
-                URL url = new URL(to + "?" + fullData);
+                spool.add(failed);
+            } catch (IOException e) {
+                Log.e(TinySMSGate.tag, "Cannot journal " + failed.size() + " spooled texts, they are kept in memory only", e);
+            }
+        }
+        if (outcome != null) {
+            toast(outcome.text);
+        }
+    }
+
+    private void toast(final String res) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(context, res, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    /**
+     * Works through the spool as the senders' backoff delays run out
+     */
+    private class RetryWorker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    spool.awaitReady();
+                } catch (InterruptedException e) {
+                    return;
+                }
                 try {
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestMethod("GET");
-                    connection.setRequestProperty("User-agent", "Tiny SMS Gate");
-                    int responseCode = connection.getResponseCode();
-                    switch(responseCode) {
-                    case 200:
-                        return "Tiny SMS Gate forwarded a text.";
-                    default:
-                        return "Tiny SMS Gate forwarded a text, but it may have failed. Code " + responseCode;
+                    retry();
+                } catch (RuntimeException e) {
+                    Log.e(TinySMSGate.tag, e.getMessage(), e);
+                }
+            }
+        }
+
+        private void retry() {
+            long maxAge = TimeUnit.HOURS.toMillis(GatewayConfig.getIntPreference(preferences, "txtSpoolMaxAge", 24));
+            spool.expire(maxAge, GatewayConfig.getIntPreference(preferences, "txtSpoolMaxAttempts", 30));
+
+            String to = preferences.getString("txtUrl", "");
+            if (FORMAT_JSON.equals(preferences.getString("lstForwardFormat", FORMAT_FORM))) {
+                int batchSize = GatewayConfig.getIntPreference(preferences, "txtForwardBatchSize", 50);
+                List<ForwardSpool.Entry> ready = spool.ready(batchSize, Integer.MAX_VALUE);
+                if (ready.isEmpty()) return;
+                List<InboundSMS> batch = new ArrayList<>(ready.size());
+                for (ForwardSpool.Entry entry : ready) {
+                    batch.add(entry.sms);
+                }
+                if (sendBatch(to, batch).delivered) {
+                    spool.delivered(ready);
+                } else {
+                    spool.failed(ready);
+                }
+            } else {
+                String method = preferences.getString("lstSendMethod", "POST");
+                // One text per sender and round, a sender's next text waits for the previous one
+                for (ForwardSpool.Entry entry : spool.ready(Integer.MAX_VALUE, 1)) {
+                    List<ForwardSpool.Entry> single = Collections.singletonList(entry);
+                    if (sendMessage(method, to, entry.sms).delivered) {
+                        spool.delivered(single);
+                    } else {
+                        spool.failed(single);
                     }
-                } catch (IOException e) {
-                    return "Tiny SMS Gate tried to forward an SMS, but could not connect.";
                 }
-            } catch (MalformedURLException e) {
-                return "Tiny SMS Gate tried to forward an SMS, but the URL was malformed.";
             }
         }
     }
-}
\ No newline at end of file
+
+    public static class Outcome {
+        public final boolean delivered;
+        public final String text;
+
+        Outcome(boolean delivered, String text) {
+            this.delivered = delivered;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Time from reception of a text to the webhook accepting it, in milliseconds
+     */
+    public LatencyHistogram getForwardLatency() {
+        return forwardLatency;
+    }
+
+    public WebhookClient getClient() {
+        return client;
+    }
+
+    private boolean useGzip() {
+        return preferences.getBoolean("chkForwardGzip", false);
+    }
+
+    private void recordForwarded(List<InboundSMS> batch) {
+        long now = System.currentTimeMillis();
+        TraceRing traces = MessageTraces.get().inbound;
+        long forwardedAt = TraceRing.now();
+        for (InboundSMS sms : batch) {
+            forwardLatency.record(now - sms.receivedAt);
+            traces.mark(sms.traceId, MessageTraces.FORWARDED, forwardedAt);
+        }
+    }
+
+    private static void recordForwarding(List<InboundSMS> batch) {
+        TraceRing traces = MessageTraces.get().inbound;
+        long startedAt = TraceRing.now();
+        for (InboundSMS sms : batch) {
+            traces.mark(sms.traceId, MessageTraces.FORWARDING, startedAt);
+        }
+    }
+
+    /**
+     * POST the batch as [{"phone": ..., "message": ..., "received": epoch millis}, ...]
+     */
+    public Outcome sendBatch(String to, List<InboundSMS> batch) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(batch.size() * 128);
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+            writer.beginArray();
+            for (InboundSMS sms : batch) {
+                writer.beginObject();
+                writer.name("phone").value(sms.from);
+                writer.name("message").value(sms.message);
+                writer.name("received").value(sms.receivedAt);
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.close();
+
+            recordForwarding(batch);
+            int responseCode = client.execute("POST", to, "application/json; charset=utf-8", body.toByteArray(), useGzip());
+            switch(responseCode) {
+                case 200:
+                    recordForwarded(batch);
+                    return new Outcome(true, "Tiny SMS Gate forwarded " + batch.size() + " texts.");
+                default:
+                    Metrics.get().forwardFailed.add(batch.size());
+                    return new Outcome(false, "Tiny SMS Gate forwarded " + batch.size() + " texts, but it may have failed. Code " + responseCode);
+            }
+        } catch (MalformedURLException e) {
+            Metrics.get().forwardFailed.add(batch.size());
+            return new Outcome(false, "Tiny SMS Gate tried to forward " + batch.size() + " texts, but the URL is malformed.");
+        } catch (IOException e) {
+            Metrics.get().forwardFailed.add(batch.size());
+            return new Outcome(false, "Tiny SMS Gate tried to forward " + batch.size() + " texts, but could not connect.");
+        }
+    }
+
+    /**
+     * Send one text as phone=...&message=..., in the query string for GET or as a form body for POST
+     */
+    public Outcome sendMessage(String method, String to, InboundSMS sms) {
+        String fullData;
+        try {
+            fullData = "phone=" + URLEncoder.encode(sms.from == null ? "" : sms.from, "UTF-8")
+                    + "&message=" + URLEncoder.encode(sms.message, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            MessageTraces.get().inbound.mark(sms.traceId, MessageTraces.FORWARDING);
+            int responseCode;
+            if(method.equals("POST")) {
+                responseCode = client.execute("POST", to, "application/x-www-form-urlencoded",
+                        fullData.getBytes(StandardCharsets.UTF_8), useGzip());
+            } else {
+                responseCode = client.execute("GET", to + "?" + fullData, null, null, false);
+            }
+            switch(responseCode) {
+                case 200:
+                    recordForwarded(Collections.singletonList(sms));
+                    return new Outcome(true, "Tiny SMS Gate forwarded a text.");
+                default:
+                    Metrics.get().forwardFailed.increment();
+                    return new Outcome(false, "Tiny SMS Gate forwarded a text, but it may have failed. Code " + responseCode);
+            }
+        } catch (MalformedURLException e) {
+            Metrics.get().forwardFailed.increment();
+            return new Outcome(false, "Tiny SMS Gate tried to forward an SMS, but the URL is malformed.");
+        } catch (IOException e) {
+            Metrics.get().forwardFailed.increment();
+            return new Outcome(false, "Tiny SMS Gate tried to forward an SMS, but could not connect.");
+        }
+    }
+}
@@ -1,22 +1,47 @@
 package rocks.jahn.tinysmsgate;
 
+import java.io.File;
 import java.io.IOException;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkRequest;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 import android.telephony.SmsManager;
+import android.util.Log;
 import android.widget.Toast;
 
+import rocks.jahn.tinysmsgate.lib.NetworkUtil;
+
 public class SMSGateService extends Service {
+    private static final String TAG = "SMSGateService";
+    private static final int STATUS_CAPACITY = 200000;
+    private static final long STATUS_TTL = 7 * 24 * 3600 * 1000L;
+
     private IBinder binder = new SMSGateServiceBinder();
     private SMSGateWebServer webServer;
+    private SMSOutbox outbox;
+    private DeliveryStatusIndex statusIndex;
+    private DeliveryReportNotifier reportNotifier;
+    private SendScheduler scheduler;
+    private SimPool simPool;
+    private SMSDispatcher dispatcher;
     private SharedPreferences preferences;
     private SmsManager smsManager;
     private Context context;
+    /** API 21 and later */
+    private ConnectivityManager.NetworkCallback networkCallback;
+    /** Before API 21 */
+    private BroadcastReceiver connectivityReceiver;
     
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -26,11 +51,15 @@ public class SMSGateService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        watchNetwork();
     }
     
     @Override
     public void onDestroy() {
-        webServer.stop();
+        unwatchNetwork();
+        if(webServer != null)
+            webServer.stop();
+        stopDispatcher();
         Toast.makeText(this, "SMSGate Web Service stopped.", Toast.LENGTH_SHORT).show();
     }
     
@@ -51,36 +80,163 @@ public class SMSGateService extends Service {
         this.context = context;
     }
     
+    /**
+     * Start the dispatcher together with the web server. The SENT and DELIVERED receivers are
+     * registered by the web server, so the outbox is only drained while it runs.
+     */
     public void startServer() {
+        boolean receptionEnabled = preferences.getBoolean("chkReceiveSMS", false);
+        if(!receptionEnabled) {
+            Toast.makeText(this, "Tiny SMS Gate Web Service is disabled in the preferences.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if(!startDispatcher()) {
+            Toast.makeText(this, "Tiny SMS Gate could not open the outbox.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         if(webServer == null) {
             String port = preferences.getString("txtPort", "8080");
             webServer = new SMSGateWebServer(Integer.parseInt(port));
             webServer.setPreferences(preferences);
-            webServer.setSmsManager(smsManager);
+            webServer.setOutbox(outbox);
+            webServer.setStatusIndex(statusIndex);
+            webServer.setScheduler(scheduler);
+            webServer.setSimPool(simPool);
+            webServer.setReportNotifier(reportNotifier);
             webServer.setContext(context);
         }
 
-        boolean receptionEnabled = preferences.getBoolean("chkReceiveSMS", false);
-        
-        if(receptionEnabled) {
-            try {
-                webServer.start();
-                Toast.makeText(this, "Tiny SMS Gate Web Service started.", Toast.LENGTH_SHORT).show();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else {
-            Toast.makeText(this, "Tiny SMS Gate Web Service is disabled in the preferences.", Toast.LENGTH_SHORT).show();
+        try {
+            webServer.start();
+            Toast.makeText(this, "Tiny SMS Gate Web Service started.", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            // Unregisters the receivers start() registered before the socket failed
+            webServer.stop();
+            webServer = null;
+            stopDispatcher();
         }
     }
     
     public void stopServer() {
-        if(webServer.isAlive())
+        if(webServer != null && webServer.isAlive())
             webServer.stop();
         webServer = null;
+        stopDispatcher();
         Toast.makeText(this, "Tiny SMS Gate Web Service stopped.", Toast.LENGTH_SHORT).show();
     }
     
+    /**
+     * Open the outbox, replaying whatever was not handed to the SmsManager before the last
+     * shutdown, and start draining it
+     */
+    private boolean startDispatcher() {
+        if(dispatcher != null && dispatcher.isAlive())
+            return true;
+        statusIndex = new DeliveryStatusIndex(new File(getFilesDir(), "status"), STATUS_CAPACITY, STATUS_TTL);
+        try {
+            statusIndex.open();
+        } catch (IOException e) {
+            // Only the history of earlier messages is lost
+            Log.e(TAG, e.getMessage(), e);
+        }
+        outbox = new SMSOutbox(new File(getFilesDir(), "outbox"));
+        try {
+            outbox.open();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            outbox.close();
+            outbox = null;
+            statusIndex.close();
+            statusIndex = null;
+            return false;
+        }
+        reportNotifier = new DeliveryReportNotifier(preferences);
+        reportNotifier.start();
+        scheduler = new SendScheduler(preferences);
+        simPool = new SimPool(context, preferences, smsManager);
+        dispatcher = new SMSDispatcher(outbox, scheduler, statusIndex, reportNotifier, simPool, context);
+        dispatcher.start();
+        return true;
+    }
+
+    private void stopDispatcher() {
+        if(dispatcher != null) {
+            dispatcher.shutdown();
+            try {
+                dispatcher.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dispatcher = null;
+            scheduler = null;
+            simPool = null;
+        }
+        if(outbox != null) {
+            outbox.close();
+            outbox = null;
+        }
+        if(statusIndex != null) {
+            statusIndex.close();
+            statusIndex = null;
+        }
+        if(reportNotifier != null) {
+            reportNotifier.shutdown();
+            reportNotifier = null;
+        }
+    }
+
+    /**
+     * Forget the cached interface addresses whenever the network changes, so the address shown
+     * is the current one
+     */
+    @SuppressWarnings("deprecation")
+    private void watchNetwork() {
+        ConnectivityManager connectivity = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        if (connectivity == null) return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    NetworkUtil.invalidateAddresses();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    NetworkUtil.invalidateAddresses();
+                }
+
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                    NetworkUtil.invalidateAddresses();
+                }
+            };
+            connectivity.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+        } else {
+            connectivityReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    NetworkUtil.invalidateAddresses();
+                }
+            };
+            registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    private void unwatchNetwork() {
+        if (networkCallback != null) {
+            ConnectivityManager connectivity = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+            if (connectivity != null) connectivity.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+        if (connectivityReceiver != null) {
+            unregisterReceiver(connectivityReceiver);
+            connectivityReceiver = null;
+        }
+    }
+
     public boolean isAlive() {
         return webServer != null && webServer.isAlive();
     }
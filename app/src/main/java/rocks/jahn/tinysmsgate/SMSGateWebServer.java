@@ -1,35 +1,109 @@
 package rocks.jahn.tinysmsgate;
 
 import android.app.Activity;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.telephony.SmsManager;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import fi.iki.elonen.NanoHTTPD;
+import rocks.jahn.tinysmsgate.lib.SmsEncoding;
 
 
 public class SMSGateWebServer extends NanoHTTPD {
     private static final String TAG = "SMSGateWebServer";
-    private static final String SENT = "SMS_SENT";
-    private static final String DELIVERED = "SMS_DELIVERED";
-    private static final String KEY_PHONE = "PHONE";
+    static final String SENT = "SMS_SENT";
+    static final String DELIVERED = "SMS_DELIVERED";
+    static final String KEY_PHONE = "PHONE";
+    static final String KEY_ID = "ID";
+    static final String KEY_SUBSCRIPTION = "SUBSCRIPTION";
+    static final String KEY_PART = "PART";
+    static final String KEY_PARTS = "PARTS";
+    private static final int MAX_STATUS_LOOKUP = 10000;
+    /** Milliseconds a kept alive connection may sit idle and hold a server thread */
+    private static final int KEEP_ALIVE_TIMEOUT = 1000;
+    /** Milliseconds and bytes a rejected connection is read for before it is closed */
+    private static final int REJECT_LINGER = 1000;
+    private static final int MAX_REJECT_DRAIN = 64 * 1024;
+    /** Bytes of a body no handler reads that are skipped to keep the connection, longer ones close it */
+    private static final int MAX_SKIPPED_BODY = 64 * 1024;
+    /** Slowest messages listed by /trace */
+    private static final int TRACE_SLOWEST = 10;
+    /** Texts per /inbox page unless the client asks for fewer */
+    private static final int INBOX_LIMIT = 100;
+    private static final int MAX_INBOX_LIMIT = 1000;
+    /** Seconds an /inbox request waits for a new text unless the client asks otherwise */
+    private static final int INBOX_TIMEOUT = 20;
+    private static final int MAX_INBOX_TIMEOUT = 60;
+    /** Texts per /history answer unless the client asks for fewer */
+    private static final int HISTORY_LIMIT = 100;
+    private static final int MAX_HISTORY_LIMIT = 1000;
+    /** Days /history looks back unless the client gives a start */
+    private static final int HISTORY_DAYS = 7;
+    /** Metrics route of requests no route matches */
+    private static final int UNMATCHED = Metrics.get().route("unmatched");
+    private static final byte[] WELCOME = serialize("SMSGate", "Welcome to SMSGate!");
+    private static final byte[] NOT_FOUND = serialize("404", "Aw, man. :(");
+    private static final byte[] UNKNOWN_MESSAGE = serialize("404", "Unknown message.");
+    private static final byte[] FORBIDDEN = serialize("Forbidden", "Bad password.");
+    private static final byte[] LENGTH_REQUIRED = serialize("Length Required", "Content-Length is required.");
+    private static final byte[] PAYLOAD_TOO_LARGE = serialize("Payload Too Large",
+            "The body is larger than the configured maximum, use the batch endpoint for many messages.");
+    /** Seconds a client turned away for lack of capacity is asked to wait */
+    private static final int RETRY_AFTER = 1;
+    private static final byte[] OVERLOADED = rawResponse("503 Service Unavailable", RETRY_AFTER,
+            serialize("Service Unavailable", "Too many connections, try again later."));
     
+    /** The connection the current server thread runs */
+    private static final ThreadLocal<Connection> CONNECTION = new ThreadLocal<>();
+
     private SharedPreferences preferences;
-    private SmsManager smsManager;
+    private volatile GatewayConfig config;
+    private volatile RouteTable<Endpoint> routes;
+    private final SharedPreferences.OnSharedPreferenceChangeListener configListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    reloadConfig();
+                }
+            };
+    private SMSOutbox outbox;
+    private DeliveryStatusIndex statusIndex;
+    private DeliveryReportNotifier reportNotifier;
+    private SendScheduler scheduler;
+    private SimPool simPool;
+    private BoundedAsyncRunner runner;
     private Context context;
     private BroadcastReceiver sentReceiver, deliveredReceiver;
     private Gson gson = new Gson();
+    private final Metrics metrics = Metrics.get();
+    private final TraceRing traces = MessageTraces.get().outbound;
+    private final PartTracker parts = new PartTracker();
+    /** /inbox requests waiting for a text, each holds one of the runner's threads */
+    private final AtomicInteger inboxWaiting = new AtomicInteger();
 
     public SMSGateWebServer(int port) {
         super(port);
@@ -37,10 +111,37 @@ public class SMSGateWebServer extends NanoHTTPD {
     
     public void setPreferences(SharedPreferences preferences) {
         this.preferences = preferences;
+        reloadConfig();
+    }
+
+    /**
+     * Take a new snapshot of the preferences and rebuild the routes that depend on it
+     */
+    private void reloadConfig() {
+        GatewayConfig config = GatewayConfig.from(preferences);
+        RouteTable<Endpoint> routes = buildRoutes(config);
+        this.config = config;
+        this.routes = routes;
+    }
+    
+    public void setOutbox(SMSOutbox outbox) {
+        this.outbox = outbox;
+    }
+    
+    public void setStatusIndex(DeliveryStatusIndex statusIndex) {
+        this.statusIndex = statusIndex;
+    }
+    
+    public void setScheduler(SendScheduler scheduler) {
+        this.scheduler = scheduler;
     }
     
-    public void setSmsManager(SmsManager smsManager) {
-        this.smsManager = smsManager;
+    public void setSimPool(SimPool simPool) {
+        this.simPool = simPool;
+    }
+    
+    public void setReportNotifier(DeliveryReportNotifier reportNotifier) {
+        this.reportNotifier = reportNotifier;
     }
     
     public void setContext(Context context) {
@@ -52,12 +153,33 @@ public class SMSGateWebServer extends NanoHTTPD {
         sentReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                switch (getResultCode()) {
-                    case Activity.RESULT_OK:
-                        Log.i(TAG, "Sent OK: " + intent.getStringExtra(KEY_PHONE));
+                long id = intent.getLongExtra(KEY_ID, 0);
+                int count = intent.getIntExtra(KEY_PARTS, 1);
+                boolean success = getResultCode() == Activity.RESULT_OK;
+                if (success) {
+                    metrics.segmentsSent.increment();
+                } else {
+                    metrics.segmentsSendFailed.increment();
+                }
+                int outcome = count > 1 ? parts.sent(id, count, success)
+                        : success ? PartTracker.COMPLETE : PartTracker.FAILED;
+                if (outcome == PartTracker.PENDING) return;
+                simPool.result(intent.getIntExtra(KEY_SUBSCRIPTION, SimPool.DEFAULT_SUBSCRIPTION),
+                        outcome == PartTracker.COMPLETE);
+                switch (outcome) {
+                    case PartTracker.COMPLETE:
+                        Log.i(TAG, "Sent OK: " + id + ", " + intent.getStringExtra(KEY_PHONE));
+                        metrics.smsSent.increment();
+                        traces.mark(id, MessageTraces.SENT);
+                        statusIndex.update(id, DeliveryStatusIndex.SENT, 0);
+                        reportNotifier.report(id, intent.getStringExtra(KEY_PHONE), DeliveryStatusIndex.SENT, 0);
                     break;
                     default:
-                        Log.e(TAG, "Sent Error:" + intent.getStringExtra(KEY_PHONE) + ", "  + getResultCode());
+                        Log.e(TAG, "Sent Error:" + id + ", " + intent.getStringExtra(KEY_PHONE) + ", "  + getResultCode()
+                                + (count > 1 ? ", part " + (intent.getIntExtra(KEY_PART, 0) + 1) + " of " + count : ""));
+                        metrics.smsSendFailed.increment();
+                        statusIndex.update(id, DeliveryStatusIndex.FAILED, getResultCode());
+                        reportNotifier.report(id, intent.getStringExtra(KEY_PHONE), DeliveryStatusIndex.FAILED, getResultCode());
                 }
             }
         };
@@ -66,30 +188,261 @@ public class SMSGateWebServer extends NanoHTTPD {
         deliveredReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                switch (getResultCode()) {
-                    case Activity.RESULT_OK:
-                        Log.i(TAG, "Delivered OK: " + intent.getStringExtra(KEY_PHONE));
+                long id = intent.getLongExtra(KEY_ID, 0);
+                int count = intent.getIntExtra(KEY_PARTS, 1);
+                boolean success = getResultCode() == Activity.RESULT_OK;
+                int outcome = count > 1 ? parts.delivered(id, count, success)
+                        : success ? PartTracker.COMPLETE : PartTracker.FAILED;
+                switch (outcome) {
+                    case PartTracker.PENDING:
+                        break;
+                    case PartTracker.COMPLETE:
+                        Log.i(TAG, "Delivered OK: " + id + ", " + intent.getStringExtra(KEY_PHONE));
+                        metrics.smsDelivered.increment();
+                        traces.mark(id, MessageTraces.DELIVERED);
+                        statusIndex.update(id, DeliveryStatusIndex.DELIVERED, 0);
+                        reportNotifier.report(id, intent.getStringExtra(KEY_PHONE), DeliveryStatusIndex.DELIVERED, 0);
                         break;
                     default:
-                        Log.e(TAG, "Delivered Error:" + intent.getStringExtra(KEY_PHONE) + ", "  + getResultCode());
+                        Log.e(TAG, "Delivered Error:" + id + ", " + intent.getStringExtra(KEY_PHONE) + ", "  + getResultCode()
+                                + (count > 1 ? ", part " + (intent.getIntExtra(KEY_PART, 0) + 1) + " of " + count : ""));
+                        metrics.smsUndelivered.increment();
+                        statusIndex.update(id, DeliveryStatusIndex.UNDELIVERED, getResultCode());
+                        reportNotifier.report(id, intent.getStringExtra(KEY_PHONE), DeliveryStatusIndex.UNDELIVERED, getResultCode());
                 }
             }
         };
         context.registerReceiver(deliveredReceiver, new IntentFilter(DELIVERED));
+        // SharedPreferences only keeps a weak reference, the field keeps the listener alive
+        preferences.registerOnSharedPreferenceChangeListener(configListener);
+        reloadConfig();
+        runner = new BoundedAsyncRunner(GatewayConfig.getIntPreference(preferences, "txtServerThreads", 4),
+                GatewayConfig.getIntPreference(preferences, "txtServerQueue", 16));
+        setAsyncRunner(runner);
+        setServerSocketFactory(new ServerSocketFactory() {
+            @Override
+            public ServerSocket create() throws IOException {
+                return new CountingServerSocket(metrics.bytesReceived, metrics.bytesSent);
+            }
+        });
         super.start();
     }
 
     @Override
     public void stop() {
+        preferences.unregisterOnSharedPreferenceChangeListener(configListener);
         context.unregisterReceiver(sentReceiver);
         context.unregisterReceiver(deliveredReceiver);
         super.stop();
+        runner.shutdown();
+    }
+
+    @Override
+    protected ClientHandler createClientHandler(Socket socket, InputStream inputStream) {
+        return new Connection(inputStream, socket);
     }
 
-    public void sendSms(String to, String message) {
-        PendingIntent sentPI = PendingIntent.getBroadcast(context, 0, new Intent(SENT).putExtra(KEY_PHONE, to), 0);
-        PendingIntent deliveredPI = PendingIntent.getBroadcast(context, 0, new Intent(DELIVERED).putExtra(KEY_PHONE, to), 0);
-        smsManager.sendTextMessage(to, null, message, sentPI, deliveredPI);
+    /**
+     * Append the message to the outbox and answer as soon as it is on disk, the dispatcher
+     * thread does the actual sending.
+     *
+     * @param acceptedAt when the request was read, {@link TraceRing#now()}
+     */
+    private Response queueSms(String phone, String message, String priorityName, long acceptedAt) {
+        String error = SMSOutbox.validate(phone, message);
+        int priority = SMSOutbox.priorityOf(priorityName);
+        if (error == null && priority < 0) {
+            error = "Unknown priority, use urgent, normal or bulk.";
+        }
+        if (error != null) {
+            return newFixedLengthResponse(
+                    Response.Status.BAD_REQUEST,
+                    "application/json",
+                    jsonEncode("Bad Request", error));
+        }
+        try {
+            SmsEncoding.Plan plan = SmsEncoding.plan(message, null, false);
+            SMSOutbox.Entry entry = outbox.enqueue(phone, message, priority);
+            statusIndex.update(entry.id, DeliveryStatusIndex.QUEUED, 0);
+            traces.begin(entry.id, acceptedAt);
+            traces.mark(entry.id, MessageTraces.QUEUED);
+            return newFixedLengthResponse(
+                    Response.Status.ACCEPTED,
+                    "application/json",
+                    gson.toJson(new Result("SMSgate", "Queued.", entry.id, plan.segments,
+                            encodingName(plan.encoding))));
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return newFixedLengthResponse(
+                    Response.Status.SERVICE_UNAVAILABLE,
+                    "application/json",
+                    jsonEncode("Service Unavailable", e.getMessage()));
+        }
+    }
+
+    /**
+     * @return the name of an {@link SmsEncoding} encoding in responses
+     */
+    static String encodingName(int encoding) {
+        return encoding == SmsEncoding.GSM7 ? "gsm7" : "ucs2";
+    }
+
+    /**
+     * Stream a JSON array or NDJSON batch straight from the socket into the outbox. The body is
+     * not passed through parseBody, so it never lands in memory or in a temp file as a whole.
+     */
+    private Response queueBatch(IHTTPSession session) {
+        long length = getContentLength(session);
+        if (length < 0) {
+            return unreadBody(constant(Response.Status.LENGTH_REQUIRED, LENGTH_REQUIRED));
+        }
+
+        LimitedInputStream body = new LimitedInputStream(session.getInputStream(), length);
+        SMSBatch batch = new SMSBatch(outbox, statusIndex);
+        try {
+            byte[] result = batch.queue(body);
+            Response.Status status = batch.isOutboxFailed() ? Response.Status.SERVICE_UNAVAILABLE
+                    : batch.getError() == null ? Response.Status.ACCEPTED : Response.Status.BAD_REQUEST;
+            Response response = newFixedLengthResponse(
+                    status,
+                    "application/json",
+                    new ByteArrayInputStream(result),
+                    result.length);
+            if (body.getRemaining() > 0) {
+                // The rest of a malformed or abandoned body is still on the wire
+                response.closeConnection(true);
+            }
+            return response;
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            Response response = newFixedLengthResponse(
+                    Response.Status.SERVICE_UNAVAILABLE,
+                    "application/json",
+                    jsonEncode("Service Unavailable", e.getMessage()));
+            response.closeConnection(true);
+            return response;
+        }
+    }
+
+    /**
+     * GET /status/{id}
+     */
+    private Response getStatus(String id) {
+        DeliveryStatusIndex.Entry entry = new DeliveryStatusIndex.Entry();
+        try {
+            if (statusIndex.get(Long.parseLong(id), entry)) {
+                return newFixedLengthResponse(
+                        Response.Status.OK,
+                        "application/json",
+                        gson.toJson(new MessageStatus(entry)));
+            }
+        } catch (NumberFormatException e) {
+            // not one of our ids
+        }
+        return constant(Response.Status.NOT_FOUND, UNKNOWN_MESSAGE);
+    }
+
+    /**
+     * POST /status with a JSON array of ids, answered with an array of statuses in the same order
+     */
+    private Response getStatuses(IHTTPSession session) {
+        long length = getContentLength(session);
+        if (length < 0) {
+            return unreadBody(constant(Response.Status.LENGTH_REQUIRED, LENGTH_REQUIRED));
+        }
+
+        LimitedInputStream body = new LimitedInputStream(session.getInputStream(), length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+            DeliveryStatusIndex.Entry entry = new DeliveryStatusIndex.Entry();
+            int count = 0;
+            reader.beginArray();
+            writer.beginArray();
+            while (reader.hasNext()) {
+                if (++count > MAX_STATUS_LOOKUP) {
+                    throw new IOException("At most " + MAX_STATUS_LOOKUP + " ids per request");
+                }
+                long id = reader.nextLong();
+                writer.beginObject();
+                writer.name("id").value(id);
+                if (statusIndex.get(id, entry)) {
+                    writer.name("status").value(DeliveryStatusIndex.name(entry.status));
+                    writer.name("updated").value(entry.updatedAt);
+                    if (entry.error != 0) writer.name("error").value(entry.error);
+                } else {
+                    writer.name("status").value(DeliveryStatusIndex.name(DeliveryStatusIndex.UNKNOWN));
+                }
+                writer.endObject();
+            }
+            reader.endArray();
+            writer.endArray();
+            writer.flush();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            Response response = newFixedLengthResponse(
+                    Response.Status.BAD_REQUEST,
+                    "application/json",
+                    jsonEncode("Bad Request", "Expected a JSON array of message ids. " + e.getMessage()));
+            response.closeConnection(true);
+            return response;
+        }
+        byte[] result = bytes.toByteArray();
+        return newFixedLengthResponse(
+                Response.Status.OK,
+                "application/json",
+                new ByteArrayInputStream(result),
+                result.length);
+    }
+
+    /**
+     * @return the declared body length, -1 if there is none or it is invalid
+     */
+    private static long getContentLength(IHTTPSession session) {
+        String contentLength = session.getHeaders().get("content-length");
+        try {
+            return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Close the connection after a response that leaves the streamed body on the wire
+     */
+    private static Response unreadBody(Response response) {
+        response.closeConnection(true);
+        return response;
+    }
+
+    private boolean isAuthorized(IHTTPSession session) {
+        return config.isAuthorized(session.getParms().get("password"));
+    }
+
+    /**
+     * A response with one of the pre-serialized bodies
+     */
+    private static Response constant(Response.Status status, byte[] body) {
+        return newFixedLengthResponse(status, "application/json", new ByteArrayInputStream(body), body.length);
+    }
+
+    private static byte[] serialize(String code, String message) {
+        return new Gson().toJson(new Result(code, message)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A whole HTTP response with a JSON body, for writing straight to a socket
+     */
+    private static byte[] rawResponse(String status, int retryAfter, byte[] body) {
+        byte[] head = ("HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Retry-After: " + retryAfter + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+        return response;
     }
 
     private String jsonEncode(String code, String message) {
@@ -97,96 +450,498 @@ public class SMSGateWebServer extends NanoHTTPD {
         return gson.toJson(result);
     }
 
-    @Override
-    public Response serve(IHTTPSession session) {
-        Method method = session.getMethod();
-        String uri = session.getUri();
-        Map<String, String> files = new HashMap<>();
+    private RouteTable<Endpoint> buildRoutes(final GatewayConfig config) {
+        Endpoint welcome = new Endpoint("root") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                return constant(Response.Status.OK, WELCOME);
+            }
+        };
+        Endpoint outboxStatus = new Endpoint("outbox") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                return getOutboxStatus();
+            }
+        };
+        Endpoint sims = new Endpoint("sims") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                String problem = simPool.getProblem();
+                if (problem != null) {
+                    return newFixedLengthResponse(
+                            Response.Status.SERVICE_UNAVAILABLE,
+                            "application/json",
+                            jsonEncode("Service Unavailable", problem));
+                }
+                return newFixedLengthResponse(
+                        Response.Status.OK,
+                        "application/json",
+                        gson.toJson(simPool.getStatus()));
+            }
+        };
+        Endpoint serverStatus = new Endpoint("server") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                return newFixedLengthResponse(
+                        Response.Status.OK,
+                        "application/json",
+                        gson.toJson(new ServerStatus(runner.getThreads(), runner.getInFlight(),
+                                runner.getQueued(), runner.getRejected())));
+            }
+        };
+        Endpoint trace = new Endpoint("trace") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                MessageTraces traces = MessageTraces.get();
+                return newFixedLengthResponse(
+                        Response.Status.OK,
+                        "application/json",
+                        gson.toJson(new TraceStatus(traces.outbound.report(TRACE_SLOWEST),
+                                traces.inbound.report(TRACE_SLOWEST))));
+            }
+        };
+        Endpoint metricsEndpoint = new Endpoint("metrics") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                return getMetrics();
+            }
+        };
+        Endpoint forwarderStatus = new Endpoint("forwarder") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                return getForwarderStatus();
+            }
+        };
+        Endpoint inbox = new Endpoint("inbox") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                if (!isAuthorized(session)) return constant(Response.Status.FORBIDDEN, FORBIDDEN);
+                return getInbox(session);
+            }
+        };
+        Endpoint history = new Endpoint("history") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                if (!isAuthorized(session)) return constant(Response.Status.FORBIDDEN, FORBIDDEN);
+                return getHistory(session);
+            }
+        };
+        Endpoint send = new Endpoint("send", true) {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                return send(session);
+            }
+        };
+        Endpoint batch = new Endpoint("batch", true) {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                if (!isAuthorized(session)) return unreadBody(constant(Response.Status.FORBIDDEN, FORBIDDEN));
+                return queueBatch(session);
+            }
+        };
+        Endpoint statuses = new Endpoint("statuses", true) {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                if (!isAuthorized(session)) return unreadBody(constant(Response.Status.FORBIDDEN, FORBIDDEN));
+                return getStatuses(session);
+            }
+        };
+        Endpoint status = new Endpoint("status") {
+            @Override
+            public Response handle(IHTTPSession session, String uri) {
+                if (!isAuthorized(session)) return constant(Response.Status.FORBIDDEN, FORBIDDEN);
+                return getStatus(uri.substring("/status/".length()));
+            }
+        };
 
-        if(Method.POST.equals(method)) {
+        // Added from the lowest to the highest precedence, a later route replaces an earlier one
+        RouteTable.Builder<Endpoint> builder = new RouteTable.Builder<Endpoint>()
+                .add(Method.GET, "/", welcome)
+                .add(Method.GET, "/forwarder", forwarderStatus)
+                .add(Method.GET, "/sims", sims)
+                .add(Method.GET, "/server", serverStatus)
+                .add(Method.GET, "/metrics", metricsEndpoint)
+                .add(Method.GET, "/trace", trace)
+                .add(Method.GET, "/outbox", outboxStatus)
+                .add(Method.GET, "/inbox", inbox)
+                .add(Method.GET, "/history", history);
+        if (config.receiveMethod.equals("POST")) {
+            builder.add(Method.POST, config.page, send);
+        } else if (config.receiveMethod.equals("GET")) {
+            builder.add(Method.GET, config.page, send);
+        }
+        return builder
+                .add(Method.POST, "/status", statuses)
+                .addPrefix(Method.GET, "/status/", status)
+                .add(Method.POST, config.page + "/batch", batch)
+                .build();
+    }
+
+    /**
+     * The send page, with the message in the query string, an urlencoded or a JSON body
+     */
+    private Response send(IHTTPSession session) {
+        long acceptedAt = TraceRing.now();
+        SendRequest request = new SendRequest();
+        request.readParameters(session.getParms());
+        if (Method.POST.equals(session.getMethod())) {
+            String contentType = session.getHeaders().get("content-type");
+            if (contentType != null && contentType.regionMatches(true, 0, "multipart/form-data", 0, 19)) {
+                return sendMultipart(session, acceptedAt);
+            }
+            long length = getContentLength(session);
+            if (length < 0) {
+                return unreadBody(constant(Response.Status.LENGTH_REQUIRED, LENGTH_REQUIRED));
+            }
+            if (length > config.maxBodySize) {
+                Response response = constant(Response.Status.PAYLOAD_TOO_LARGE, PAYLOAD_TOO_LARGE);
+                response.closeConnection(true);
+                return response;
+            }
             try {
-                session.parseBody(files);
+                request.readBody(session.getInputStream(), (int) length, contentType);
             } catch (IOException e) {
-                Log.e(TAG, e.getMessage(), e);
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR,"application/json",
-                    jsonEncode("Internal Server Error", e.getMessage())
-                );
-            } catch (ResponseException e) {
-                Log.e(TAG, e.getMessage(), e);
-                return newFixedLengthResponse(e.getStatus(),"application/json",
-                    jsonEncode("Internal Server Error", e.getMessage())
-                );
+                Response response = newFixedLengthResponse(
+                        Response.Status.BAD_REQUEST,
+                        "application/json",
+                        jsonEncode("Bad Request", e.getMessage()));
+                response.closeConnection(true);
+                return response;
             }
         }
 
+        if (!config.isAuthorized(request.getPassword())) {
+            return constant(Response.Status.FORBIDDEN, FORBIDDEN);
+        }
+        return queueSms(request.getPhone(), request.getMessage(), request.getPriority(), acceptedAt);
+    }
+
+    /**
+     * Multipart forms still go through parseBody, they are rare and may carry files
+     */
+    private Response sendMultipart(IHTTPSession session, long acceptedAt) {
+        try {
+            session.parseBody(new HashMap<String, String>());
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR,"application/json",
+                jsonEncode("Internal Server Error", e.getMessage())
+            );
+        } catch (ResponseException e) {
+            Log.e(TAG, e.getMessage(), e);
+            return newFixedLengthResponse(e.getStatus(),"application/json",
+                jsonEncode("Internal Server Error", e.getMessage())
+            );
+        }
         Map<String, String> data = session.getParms();
-        data.put("NanoHttpd.QUERY_STRING", session.getQueryParameterString());
-        boolean usePassword = preferences.getBoolean("chkUsePassword", false);
-        String password = preferences.getString("txtPassword", "");
-        
-        if(uri.equals(preferences.getString("txtPage", "/send"))) {
-            String desiredMethod = preferences.getString("lstReceiveMethod", "POST");
-            if((desiredMethod.equals("POST") && Method.POST.equals(method)) ||
-               (desiredMethod.equals("GET") && Method.GET.equals(method))) {
-                if(usePassword) {
-                    if(data.containsKey("password")) {
-                        String sentPassword = data.get("password");
-                        
-                        if(sentPassword.equals(password)) {
-                            String phone = data.get("phone");
-                            String message = data.get("message");
-                            sendSms(phone, message);
-
-                            return newFixedLengthResponse(
-                                    Response.Status.OK,
-                                    "application/json",
-                                    jsonEncode("SMSgate", "Sent!"));
-                        } else {
-                            return newFixedLengthResponse(
-                                Response.Status.FORBIDDEN,
-                                "application/json",
-                                jsonEncode("Forbidden", "Bad password."));
-                        }
-                    } else {
-                        return newFixedLengthResponse(
-                            Response.Status.FORBIDDEN,
-                            "application/json",
-                            jsonEncode("Forbidden", "Bad password."));
-                    }
-                } else {
-                    return newFixedLengthResponse(
-                            Response.Status.OK,
-                            "application/json",
-                            jsonEncode("SMSgate", "Sent!"));
-                }
-            } else {
-                return newFixedLengthResponse(
-                    Response.Status.NOT_FOUND,
+        if (!config.isAuthorized(data.get("password"))) {
+            return constant(Response.Status.FORBIDDEN, FORBIDDEN);
+        }
+        return queueSms(data.get("phone"), data.get("message"), data.get("priority"), acceptedAt);
+    }
+
+    /**
+     * GET /outbox
+     */
+    private Response getOutboxStatus() {
+        List<LaneStatus> lanes = new ArrayList<>();
+        for (int priority = 0; priority < SMSOutbox.priorityCount(); priority++) {
+            lanes.add(new LaneStatus(SMSOutbox.priorityName(priority), outbox.size(priority),
+                    scheduler.getQueueWait(priority).summary()));
+        }
+        OutboxStatus status = new OutboxStatus(outbox.size(), scheduler.getDeferred(),
+                scheduler.getSentLastMinute(), scheduler.getSegmentsLastMinute(), scheduler.getQueueWait().summary(),
+                lanes);
+        return newFixedLengthResponse(
+                Response.Status.OK,
+                "application/json",
+                gson.toJson(status));
+    }
+
+    /**
+     * GET /inbox?after=&limit=&timeout=, the received texts after a sequence number. Waits up to
+     * timeout seconds for a text when there is none yet, unless all but one of the server threads
+     * are waiting already, so long polls cannot starve the send endpoints.
+     */
+    private Response getInbox(IHTTPSession session) {
+        Map<String, String> parms = session.getParms();
+        long after;
+        int limit, timeout;
+        try {
+            after = Math.max(0, parseLong(parms.get("after"), 0));
+            limit = (int) Math.min(MAX_INBOX_LIMIT, Math.max(1, parseLong(parms.get("limit"), INBOX_LIMIT)));
+            timeout = (int) Math.min(MAX_INBOX_TIMEOUT, Math.max(0, parseLong(parms.get("timeout"), INBOX_TIMEOUT)));
+        } catch (NumberFormatException e) {
+            return newFixedLengthResponse(
+                    Response.Status.BAD_REQUEST,
                     "application/json",
-                    jsonEncode("404", "Aw, man. :("));
-            }
-        } else if(uri.equals("/")) {
+                    jsonEncode("Bad Request", "after, limit and timeout must be numbers."));
+        }
+
+        SMSInbox inbox = SMSInbox.get(context);
+        List<SMSInbox.Message> messages;
+        boolean waiting = timeout > 0 && inboxWaiting.incrementAndGet() < runner.getThreads();
+        try {
+            messages = inbox.read(after, limit, waiting ? timeout * 1000L : 0);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
             return newFixedLengthResponse(
-                    Response.Status.OK,
+                    Response.Status.SERVICE_UNAVAILABLE,
                     "application/json",
-                    jsonEncode("SMSGate", "Welcome to SMSGate!"));
-        } else {
+                    jsonEncode("Service Unavailable", "Cannot read the inbox."));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            messages = new ArrayList<>();
+        } finally {
+            if (timeout > 0) inboxWaiting.decrementAndGet();
+        }
+        long next = messages.isEmpty() ? after : messages.get(messages.size() - 1).getSeq();
+        return newFixedLengthResponse(
+                Response.Status.OK,
+                "application/json",
+                gson.toJson(new InboxPage(messages, next, inbox.getFirstSeq())));
+    }
+
+    /**
+     * GET /history?phone=&from=&to=&limit=, the texts exchanged with a number, newest first.
+     * from and to are epoch milliseconds and default to the last seven days.
+     */
+    private Response getHistory(IHTTPSession session) {
+        Map<String, String> parms = session.getParms();
+        String phone = parms.get("phone");
+        long from, to;
+        int limit;
+        try {
+            if (phone == null || phone.isEmpty()) throw new IllegalArgumentException("phone is required.");
+            to = parseLong(parms.get("to"), System.currentTimeMillis());
+            from = parseLong(parms.get("from"), to - TimeUnit.DAYS.toMillis(HISTORY_DAYS));
+            limit = (int) Math.min(MAX_HISTORY_LIMIT, Math.max(1, parseLong(parms.get("limit"), HISTORY_LIMIT)));
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
             return newFixedLengthResponse(
-                Response.Status.NOT_FOUND,
+                    Response.Status.BAD_REQUEST,
+                    "application/json",
+                    jsonEncode("Bad Request", "phone is required, from, to and limit must be numbers."));
+        }
+        List<MessageHistory.Entry> entries = MessageHistory.get(context).find(phone, from, to, limit);
+        return newFixedLengthResponse(
+                Response.Status.OK,
+                "application/json",
+                gson.toJson(new HistoryPage(entries, entries.size() == limit)));
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    /**
+     * GET /forwarder
+     */
+    private Response getForwarderStatus() {
+        SMSForwarder forwarder = SMSForwarder.get(context);
+        ForwardSpool spool = forwarder.getSpool();
+        long oldest = spool.oldestReceivedAt();
+        ForwarderStatus status = new ForwarderStatus(spool.size(),
+                oldest == 0 ? 0 : (System.currentTimeMillis() - oldest) / 1000,
+                forwarder.getForwardLatency().summary(),
+                forwarder.getClient().getRequestLatency().summary());
+        return newFixedLengthResponse(
+                Response.Status.OK,
                 "application/json",
-                jsonEncode("404", "Aw, man. :("));
+                gson.toJson(status));
+    }
+
+    /**
+     * GET /metrics in the Prometheus text format
+     */
+    private Response getMetrics() {
+        PrometheusText text = new PrometheusText();
+        metrics.write(text);
+        text.header("tinysmsgate_outbox_queued", "gauge", "Messages waiting in the outbox, by priority.");
+        for (int priority = 0; priority < SMSOutbox.priorityCount(); priority++) {
+            text.sample("tinysmsgate_outbox_queued", "priority=\"" + SMSOutbox.priorityName(priority) + "\"",
+                    outbox.size(priority));
+        }
+        text.gauge("tinysmsgate_outbox_deferred", "Messages held back by the per-number limit.",
+                scheduler.getDeferred());
+        text.header("tinysmsgate_queue_wait_seconds", "histogram",
+                "Time from accepting a message to handing it to the SmsManager.");
+        text.histogram("tinysmsgate_queue_wait_seconds", null, scheduler.getQueueWait(), 1000);
+        text.gauge("tinysmsgate_http_in_flight", "HTTP connections being served.", runner.getInFlight());
+        text.gauge("tinysmsgate_http_queued", "HTTP connections waiting for a thread.", runner.getQueued());
+        text.counter("tinysmsgate_http_rejected_total", "HTTP connections turned away with 503.",
+                runner.getRejected());
+        SMSForwarder forwarder = SMSForwarder.get(context);
+        text.gauge("tinysmsgate_forward_spooled", "Texts waiting in the spool to be forwarded again.",
+                forwarder.getSpool().size());
+        text.header("tinysmsgate_forward_latency_seconds", "histogram",
+                "Time from receiving a text to the webhook accepting it.");
+        text.histogram("tinysmsgate_forward_latency_seconds", null, forwarder.getForwardLatency(), 1000);
+        text.header("tinysmsgate_webhook_request_seconds", "histogram", "Round trip time of webhook requests.");
+        text.histogram("tinysmsgate_webhook_request_seconds", null,
+                forwarder.getClient().getRequestLatency(), 1000);
+        return newFixedLengthResponse(Response.Status.OK, PrometheusText.CONTENT_TYPE, text.toString());
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        long start = System.nanoTime();
+        Connection connection = CONNECTION.get();
+        if (connection != null) connection.setTimeout(SOCKET_READ_TIMEOUT);
+        String uri = session.getUri();
+        Endpoint endpoint = routes.find(session.getMethod(), uri);
+        Response response = endpoint == null
+                ? constant(Response.Status.NOT_FOUND, NOT_FOUND)
+                : endpoint.handle(session, uri);
+        if (!response.isCloseConnection()
+                && (endpoint == null || !endpoint.readsBody || !Method.POST.equals(session.getMethod()))) {
+            skipBody(session, response);
+        }
+        if (connection != null && !response.isCloseConnection()) {
+            // An idle connection holds a thread, let it go quickly and not at all when others wait
+            if (runner.isSaturated()) {
+                response.closeConnection(true);
+            } else {
+                connection.setTimeout(KEEP_ALIVE_TIMEOUT);
+            }
+        }
+        metrics.request(endpoint == null ? UNMATCHED : endpoint.metric,
+                response.getStatus().getRequestStatus(), System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Read past a body the handler did not read, on a keep-alive connection it would otherwise
+     * be parsed as the next request. A body without a length, or one too long to bother, closes
+     * the connection instead.
+     */
+    private static void skipBody(IHTTPSession session, Response response) {
+        long length = getContentLength(session);
+        if (session.getHeaders().containsKey("transfer-encoding") || length > MAX_SKIPPED_BODY) {
+            response.closeConnection(true);
+            return;
+        }
+        if (length <= 0) return;
+        LimitedInputStream body = new LimitedInputStream(session.getInputStream(), length);
+        byte[] buffer = new byte[(int) Math.min(length, 8192)];
+        try {
+            while (body.read(buffer, 0, buffer.length) >= 0) {
+                // discard
+            }
+        } catch (IOException e) {
+            // the client is gone, the connection closes either way
+        }
+        if (body.getRemaining() > 0) response.closeConnection(true);
+    }
+
+    /**
+     * The handler of a route, with the index its requests are counted under in {@link Metrics}
+     */
+    private abstract static class Endpoint {
+        final int metric;
+        /**
+         * Whether the handler reads the whole body of a POST, or closes the connection when it
+         * does not. Bodies of other requests are skipped by {@link #serve}.
+         */
+        final boolean readsBody;
+
+        Endpoint(String name) {
+            this(name, false);
+        }
+
+        Endpoint(String name, boolean readsBody) {
+            metric = Metrics.get().route(name);
+            this.readsBody = readsBody;
+        }
+
+        /**
+         * @param uri the request path, for prefix routes to read what follows the prefix
+         */
+        public abstract Response handle(IHTTPSession session, String uri);
+    }
+
+    /**
+     * A connection that answers 503 without reading the request when the runner is full, and
+     * whose read timeout serve() shortens while it waits for the next request
+     */
+    private class Connection extends ClientHandler implements BoundedAsyncRunner.Rejectable {
+        private final Socket socket;
+
+        Connection(InputStream inputStream, Socket socket) {
+            super(inputStream, socket);
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            CONNECTION.set(this);
+            try {
+                super.run();
+            } finally {
+                CONNECTION.remove();
+            }
+        }
+
+        void setTimeout(int millis) {
+            try {
+                socket.setSoTimeout(millis);
+            } catch (IOException e) {
+                // the socket is closed, the next read fails anyway
+            }
+        }
+
+        @Override
+        public void reject() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write(OVERLOADED);
+                out.flush();
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                // the client is gone already
+            }
+        }
+
+        @Override
+        public void drain() {
+            try {
+                socket.setSoTimeout(REJECT_LINGER);
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[4096];
+                int total = 0;
+                int n;
+                while (total < MAX_REJECT_DRAIN && (n = in.read(buffer)) >= 0) {
+                    total += n;
+                }
+            } catch (IOException e) {
+                // timed out or reset, closing is all that is left
+            }
         }
     }
 
     public static class Result {
         private String code;
         private String message;
+        private Long id;
+        private Integer segments;
+        private String encoding;
 
         public Result(String code, String message) {
             this.code = code;
             this.message = message;
         }
 
+        public Result(String code, String message, long id) {
+            this(code, message);
+            this.id = id;
+        }
+
+        public Result(String code, String message, long id, int segments, String encoding) {
+            this(code, message, id);
+            this.segments = segments;
+            this.encoding = encoding;
+        }
+
         public String getCode() {
             return code;
         }
@@ -202,5 +957,304 @@ public class SMSGateWebServer extends NanoHTTPD {
         public void setMessage(String message) {
             this.message = message;
         }
+
+        public Long getId() {
+            return id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        /**
+         * @return the segments the message is expected to be sent in
+         */
+        public Integer getSegments() {
+            return segments;
+        }
+
+        public void setSegments(Integer segments) {
+            this.segments = segments;
+        }
+
+        /**
+         * @return gsm7 or ucs2
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        public void setEncoding(String encoding) {
+            this.encoding = encoding;
+        }
+    }
+
+    public static class MessageStatus {
+        private long id;
+        private String status;
+        private long updated;
+        private Integer error;
+
+        public MessageStatus(DeliveryStatusIndex.Entry entry) {
+            this.id = entry.id;
+            this.status = DeliveryStatusIndex.name(entry.status);
+            this.updated = entry.updatedAt;
+            this.error = entry.error == 0 ? null : entry.error;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /**
+         * @return epoch milliseconds of the last change
+         */
+        public long getUpdated() {
+            return updated;
+        }
+
+        /**
+         * @return result code of a failed send or delivery
+         */
+        public Integer getError() {
+            return error;
+        }
+    }
+
+    public static class OutboxStatus {
+        private int queued;
+        private int deferred;
+        private long sentLastMinute;
+        private long segmentsLastMinute;
+        private LatencyHistogram.Summary queueWait;
+        private List<LaneStatus> lanes;
+
+        public OutboxStatus(int queued, int deferred, long sentLastMinute, long segmentsLastMinute,
+                            LatencyHistogram.Summary queueWait, List<LaneStatus> lanes) {
+            this.queued = queued;
+            this.deferred = deferred;
+            this.sentLastMinute = sentLastMinute;
+            this.segmentsLastMinute = segmentsLastMinute;
+            this.queueWait = queueWait;
+            this.lanes = lanes;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return messages held back by the per-number limit
+         */
+        public int getDeferred() {
+            return deferred;
+        }
+
+        public long getSentLastMinute() {
+            return sentLastMinute;
+        }
+
+        /**
+         * @return parts of the messages sent in the last minute
+         */
+        public long getSegmentsLastMinute() {
+            return segmentsLastMinute;
+        }
+
+        /**
+         * @return milliseconds from acceptance of a message to handing it to the SmsManager
+         */
+        public LatencyHistogram.Summary getQueueWait() {
+            return queueWait;
+        }
+
+        public List<LaneStatus> getLanes() {
+            return lanes;
+        }
+    }
+
+    public static class LaneStatus {
+        private String priority;
+        private int queued;
+        private LatencyHistogram.Summary timeToSend;
+
+        public LaneStatus(String priority, int queued, LatencyHistogram.Summary timeToSend) {
+            this.priority = priority;
+            this.queued = queued;
+            this.timeToSend = timeToSend;
+        }
+
+        public String getPriority() {
+            return priority;
+        }
+
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return milliseconds from acceptance to handing the message to the SmsManager
+         */
+        public LatencyHistogram.Summary getTimeToSend() {
+            return timeToSend;
+        }
+    }
+
+    public static class ServerStatus {
+        private int threads;
+        private int inFlight;
+        private int queued;
+        private long rejected;
+
+        public ServerStatus(int threads, int inFlight, int queued, long rejected) {
+            this.threads = threads;
+            this.inFlight = inFlight;
+            this.queued = queued;
+            this.rejected = rejected;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        /**
+         * @return connections being served
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * @return connections waiting for a thread
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * @return connections answered with 503 since the server started
+         */
+        public long getRejected() {
+            return rejected;
+        }
+    }
+
+    public static class TraceStatus {
+        private TraceRing.Report outbound;
+        private TraceRing.Report inbound;
+
+        public TraceStatus(TraceRing.Report outbound, TraceRing.Report inbound) {
+            this.outbound = outbound;
+            this.inbound = inbound;
+        }
+
+        /**
+         * @return stages of the recent outgoing messages, by outbox id
+         */
+        public TraceRing.Report getOutbound() {
+            return outbound;
+        }
+
+        /**
+         * @return stages of the recent received texts
+         */
+        public TraceRing.Report getInbound() {
+            return inbound;
+        }
+    }
+
+    public static class InboxPage {
+        private List<SMSInbox.Message> messages;
+        private long next;
+        private long first;
+
+        public InboxPage(List<SMSInbox.Message> messages, long next, long first) {
+            this.messages = messages;
+            this.next = next;
+            this.first = first;
+        }
+
+        public List<SMSInbox.Message> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return the after to ask for the next page with
+         */
+        public long getNext() {
+            return next;
+        }
+
+        /**
+         * @return the oldest sequence number still kept, texts before it were removed by retention
+         */
+        public long getFirst() {
+            return first;
+        }
+    }
+
+    public static class HistoryPage {
+        private List<MessageHistory.Entry> messages;
+        private boolean more;
+
+        public HistoryPage(List<MessageHistory.Entry> messages, boolean more) {
+            this.messages = messages;
+            this.more = more;
+        }
+
+        public List<MessageHistory.Entry> getMessages() {
+            return messages;
+        }
+
+        /**
+         * @return whether the limit cut the answer, ask again with to before the oldest time
+         */
+        public boolean isMore() {
+            return more;
+        }
+    }
+
+    public static class ForwarderStatus {
+        private int spooled;
+        private long oldestAge;
+        private LatencyHistogram.Summary forwardLatency;
+        private LatencyHistogram.Summary requestLatency;
+
+        public ForwarderStatus(int spooled, long oldestAge,
+                               LatencyHistogram.Summary forwardLatency, LatencyHistogram.Summary requestLatency) {
+            this.spooled = spooled;
+            this.oldestAge = oldestAge;
+            this.forwardLatency = forwardLatency;
+            this.requestLatency = requestLatency;
+        }
+
+        public int getSpooled() {
+            return spooled;
+        }
+
+        /**
+         * @return age of the oldest spooled text in seconds
+         */
+        public long getOldestAge() {
+            return oldestAge;
+        }
+
+        /**
+         * @return milliseconds from reception of a text to the webhook accepting it
+         */
+        public LatencyHistogram.Summary getForwardLatency() {
+            return forwardLatency;
+        }
+
+        /**
+         * @return milliseconds per webhook request
+         */
+        public LatencyHistogram.Summary getRequestLatency() {
+            return requestLatency;
+        }
     }
 }
@@ -0,0 +1,397 @@
+package rocks.jahn.tinysmsgate;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Every received text, kept on the phone for clients to pull, whether or not it was forwarded.
+ *
+ * Texts get consecutive sequence numbers from 1 and are appended to segment files of about
+ * {@link #SEGMENT_SIZE} bytes, named after the first sequence number in them. Records use the
+ * same framing as the outbox log: [int payload length][int crc32 of payload][payload]. The
+ * offset of every record is kept in memory, so a page is read with positional reads starting
+ * right at the requested sequence number, outside the lock that appends take.
+ *
+ * Whole segments are removed, oldest first, once the inbox is larger than txtInboxMaxSize
+ * megabytes or their newest text is older than txtInboxMaxAge days. The segment being written
+ * is never removed.
+ */
+public class SMSInbox {
+    private static final String TAG = "SMSInbox";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_VERSION = 1;
+    public static final long SEGMENT_SIZE = 1024 * 1024;
+
+    private static SMSInbox instance;
+
+    private final File directory;
+    private final SharedPreferences preferences;
+    // guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastSeq;
+
+    SMSInbox(File directory, SharedPreferences preferences) {
+        this.directory = directory;
+        this.preferences = preferences;
+    }
+
+    /**
+     * The inbox of this process, opened on first use
+     */
+    public static synchronized SMSInbox get(Context context) {
+        if (instance == null) {
+            instance = new SMSInbox(new File(context.getFilesDir(), "inbox"),
+                    PreferenceManager.getDefaultSharedPreferences(context));
+            try {
+                instance.open();
+            } catch (IOException e) {
+                // Appends fail until the next start of the process
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+        return instance;
+    }
+
+    synchronized void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles();
+        List<Long> firstSeqs = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SUFFIX)) continue;
+                try {
+                    firstSeqs.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring " + name);
+                }
+            }
+        }
+        Long[] sorted = firstSeqs.toArray(new Long[0]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            Segment segment = new Segment(fileOf(sorted[i]), sorted[i]);
+            segment.replay(i == sorted.length - 1);
+            if (segment.count == 0 && i < sorted.length - 1) {
+                segment.delete();
+                continue;
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            Segment first = new Segment(fileOf(1), 1);
+            first.replay(true);
+            segments.add(first);
+        }
+        Segment last = segments.get(segments.size() - 1);
+        lastSeq = last.firstSeq + last.count - 1;
+        removeExpired();
+        if (lastSeq > 0) {
+            Log.i(TAG, "Inbox holds texts " + getFirstSeq() + " to " + lastSeq);
+        }
+    }
+
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    /**
+     * Append a text and force it to disk
+     *
+     * @return its sequence number
+     */
+    public long append(InboundSMS sms) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (segments.isEmpty()) throw new IOException("Inbox is closed");
+            Segment segment = segments.get(segments.size() - 1);
+            if (segment.size >= SEGMENT_SIZE) {
+                segment.channel.force(false);
+                segment = new Segment(fileOf(lastSeq + 1), lastSeq + 1);
+                segment.replay(true);
+                segments.add(segment);
+                removeExpired();
+            }
+            seq = lastSeq + 1;
+            segment.append(encode(seq, sms), sms.receivedAt);
+            lastSeq = seq;
+            segment.channel.force(false);
+            notifyAll();
+        }
+        return seq;
+    }
+
+    /**
+     * Read the texts after a sequence number, waiting for one to arrive if there are none yet
+     *
+     * @param after the last sequence number the client has, 0 for everything
+     * @param timeoutMillis how long to wait for a new text, 0 to answer right away
+     * @return at most limit texts, none if nothing arrived within the timeout
+     */
+    public List<Message> read(long after, int limit, long timeoutMillis) throws IOException, InterruptedException {
+        List<Segment> snapshot;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (lastSeq <= after) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) return new ArrayList<>();
+                wait(wait);
+            }
+            snapshot = new ArrayList<>(segments);
+        }
+
+        List<Message> messages = new ArrayList<>(Math.min(limit, 64));
+        long seq = after + 1;
+        for (Segment segment : snapshot) {
+            // Texts removed by retention are skipped
+            seq = Math.max(seq, segment.firstSeq);
+            try {
+                while (messages.size() < limit) {
+                    Message message = segment.read(seq);
+                    if (message == null) break;
+                    messages.add(message);
+                    seq++;
+                }
+            } catch (ClosedChannelException e) {
+                // Removed by retention since the snapshot, continue with the next segment
+            }
+            if (messages.size() == limit) break;
+        }
+        return messages;
+    }
+
+    /**
+     * @return the sequence number of the oldest text still kept, lastSeq + 1 if there is none
+     */
+    public synchronized long getFirstSeq() {
+        for (Segment segment : segments) {
+            if (segment.count > 0) return segment.firstSeq;
+        }
+        return lastSeq + 1;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Remove the oldest segments beyond the configured size and age
+     */
+    private void removeExpired() {
+        long maxSize = GatewayConfig.getIntPreference(preferences, "txtInboxMaxSize", 16) * 1024L * 1024L;
+        long maxAge = TimeUnit.DAYS.toMillis(GatewayConfig.getIntPreference(preferences, "txtInboxMaxAge", 30));
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+        }
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (total <= maxSize && now - oldest.newestReceivedAt <= maxAge) break;
+            Log.i(TAG, "Removing texts " + oldest.firstSeq + " to " + (oldest.firstSeq + oldest.count - 1));
+            segments.remove(0);
+            total -= oldest.size;
+            oldest.delete();
+        }
+    }
+
+    private File fileOf(long firstSeq) {
+        return new File(directory, String.format(Locale.US, "%020d%s", firstSeq, SUFFIX));
+    }
+
+    private static byte[] encode(long seq, InboundSMS sms) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + sms.message.length() * 3);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(RECORD_VERSION);
+        out.writeLong(seq);
+        out.writeLong(sms.receivedAt);
+        // Some networks send no originating address, it reads back as an empty phone
+        out.writeUTF(sms.from == null ? "" : sms.from);
+        out.writeUTF(sms.message);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(record, 0, HEADER_SIZE);
+        header.putInt(record.length - HEADER_SIZE);
+        header.putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * One file of the inbox. The offsets are only appended to under the inbox lock and read
+     * up to a count published under it, so readers holding a snapshot need no lock.
+     */
+    private static class Segment {
+        final File file;
+        final long firstSeq;
+        RandomAccessFile raf;
+        FileChannel channel;
+        volatile long[] offsets = new long[64];
+        volatile int count;
+        long size;
+        long newestReceivedAt;
+
+        Segment(File file, long firstSeq) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+        }
+
+        /**
+         * Open the file and index its records
+         *
+         * @param writable truncate a torn record at the end so appends can follow
+         */
+        void replay(boolean writable) throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            long length = channel.size();
+            long offset = 0;
+            while (true) {
+                Message message = readAt(offset, length);
+                if (message == null || message.getSeq() != firstSeq + count) break;
+                addOffset(offset);
+                newestReceivedAt = Math.max(newestReceivedAt, message.getReceived());
+                offset += HEADER_SIZE + message.recordLength;
+            }
+            if (offset < length) {
+                Log.w(TAG, "Ignoring " + (length - offset) + " bytes of incomplete inbox " + file.getName());
+                if (writable) channel.truncate(offset);
+            }
+            size = offset;
+        }
+
+        void append(byte[] record, long receivedAt) throws IOException {
+            channel.write(ByteBuffer.wrap(record), size);
+            long[] current = offsets;
+            if (count == current.length) {
+                offsets = Arrays.copyOf(current, current.length * 2);
+            }
+            offsets[count] = size;
+            size += record.length;
+            newestReceivedAt = Math.max(newestReceivedAt, receivedAt);
+            count++;
+        }
+
+        private void addOffset(long offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = offset;
+        }
+
+        /**
+         * @return the text with the sequence number, null if it is not in this segment
+         */
+        Message read(long seq) throws IOException {
+            int n = count;
+            long[] index = offsets;
+            long i = seq - firstSeq;
+            if (i < 0 || i >= n) return null;
+            return readAt(index[(int) i], Long.MAX_VALUE);
+        }
+
+        private Message readAt(long offset, long length) throws IOException {
+            if (offset + HEADER_SIZE > length) return null;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, offset) < HEADER_SIZE) return null;
+            header.flip();
+            int recordLength = header.getInt();
+            int checksum = header.getInt();
+            if (recordLength <= 0 || offset + HEADER_SIZE + recordLength > length) return null;
+
+            byte[] payload = new byte[recordLength];
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + HEADER_SIZE + buffer.position()) < 0) return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, recordLength);
+            if ((int) crc.getValue() != checksum) return null;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            if (in.readByte() != RECORD_VERSION) return null;
+            long seq = in.readLong();
+            long receivedAt = in.readLong();
+            return new Message(seq, in.readUTF(), in.readUTF(), receivedAt, recordLength);
+        }
+
+        void close() {
+            try {
+                if (raf != null) raf.close();
+            } catch (IOException e) {
+                Log.e(TAG, e.getMessage(), e);
+            }
+        }
+
+        void delete() {
+            close();
+            if (!file.delete()) {
+                Log.w(TAG, "Cannot delete " + file);
+            }
+        }
+    }
+
+    public static class Message {
+        private long seq;
+        private String phone;
+        private String message;
+        private long received;
+        private transient int recordLength;
+
+        public Message(long seq, String phone, String message, long received, int recordLength) {
+            this.seq = seq;
+            this.phone = phone;
+            this.message = message;
+            this.received = received;
+            this.recordLength = recordLength;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getPhone() {
+            return phone;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return epoch milliseconds of reception
+         */
+        public long getReceived() {
+            return received;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package rocks.jahn.tinysmsgate;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import rocks.jahn.tinysmsgate.lib.SmsEncoding;
+
+/**
+ * Durable queue of outbound SMS.
+ *
+ * Messages are appended to a write-ahead log (outbox.log) and handed to a single consumer.
+ * Each message has a priority and waits in the lane of that priority, lanes are served by
+ * smooth weighted round robin (urgent 16, normal 4, bulk 1) so urgent messages overtake queued
+ * bulk ones while a bulk backlog still gets at least 1 in 21 sends. Within a lane messages
+ * leave in log order. The consumer acknowledges each message once it has been passed to the SmsManager,
+ * not necessarily in log order. outbox.ack holds the offset below which every record is
+ * acknowledged, followed by the [start, end) ranges of acknowledged records beyond it. When the
+ * queue is opened again the log is replayed from that offset, skipping those ranges, so nothing
+ * accepted is lost on a crash or when the service is killed.
+ *
+ * Delivery is at least once. A message is acknowledged after it was handed over, so one killed
+ * in between is sent again. The ack file is only forced every {@link #ACK_SYNC_INTERVAL}
+ * acknowledgements or when the queue runs empty, so after a power loss or a crash of the
+ * system up to that many messages, 16, are sent again.
+ *
+ * Record layout: [int payload length][int crc32 of payload][payload]
+ */
+public class SMSOutbox {
+    private static final String TAG = "SMSOutbox";
+    private static final String LOG_FILE = "outbox.log";
+    private static final String ACK_FILE = "outbox.ack";
+    private static final int RECORD_VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    /** Force the ack file after this many acknowledgements, and whenever the queue runs empty */
+    private static final int ACK_SYNC_INTERVAL = 16;
+    /** Messages are stored with DataOutput.writeUTF, which is limited to 64KB */
+    public static final int MAX_MESSAGE_LENGTH = 16 * 1024;
+
+    public static final int URGENT = 0;
+    public static final int NORMAL = 1;
+    public static final int BULK = 2;
+    private static final String[] PRIORITIES = {"urgent", "normal", "bulk"};
+    private static final int[] WEIGHTS = {16, 4, 1};
+
+    private final File directory;
+    private final Object syncLock = new Object();
+
+    private RandomAccessFile log;
+    private FileChannel logChannel;
+    private RandomAccessFile ack;
+    // guarded by this
+    private final ArrayDeque<Entry>[] lanes = newLanes();
+    private final int[] credits = new int[PRIORITIES.length];
+    private int pending;
+    /** start to end offset of acknowledged records beyond ackedOffset */
+    private final TreeMap<Long, Long> ackedAhead = new TreeMap<>();
+    private long writeOffset;
+    private long lastId;
+    private int unsyncedAcks;
+    private volatile long syncedOffset;
+    private volatile long ackedOffset;
+
+    public SMSOutbox(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the log files and queue every record after the last acknowledged offset
+     *
+     * @return number of replayed messages
+     */
+    public synchronized int open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        log = new RandomAccessFile(new File(directory, LOG_FILE), "rw");
+        logChannel = log.getChannel();
+        ack = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        long ackLength = ack.length();
+        ackedOffset = ackLength >= 8 ? ack.readLong() : 0;
+        for (long position = 8; position + 16 <= ackLength; position += 16) {
+            ackedAhead.put(ack.readLong(), ack.readLong());
+        }
+        if (ackedOffset > log.length()) {
+            Log.w(TAG, "Ack offset " + ackedOffset + " is beyond the end of the log, ignored");
+            ackedOffset = 0;
+            ackedAhead.clear();
+        }
+
+        int replayed = 0;
+        long offset = ackedOffset;
+        while (true) {
+            Entry entry = readRecord(offset);
+            if (entry == null) break;
+            if (ackedAhead.containsKey(entry.offset)) {
+                // Sent before the restart
+                offset = entry.endOffset;
+                lastId = Math.max(lastId, entry.id);
+                continue;
+            }
+            lanes[entry.priority].add(entry);
+            pending++;
+            lastId = Math.max(lastId, entry.id);
+            offset = entry.endOffset;
+            replayed++;
+        }
+        if (offset < log.length()) {
+            // Torn write at the tail, the client was never told this record was accepted
+            Log.w(TAG, "Truncating " + (log.length() - offset) + " bytes of incomplete log");
+            logChannel.truncate(offset);
+        }
+        writeOffset = offset;
+        syncedOffset = offset;
+        if (replayed > 0) {
+            Log.i(TAG, "Replayed " + replayed + " queued messages from offset " + ackedOffset);
+        }
+        return replayed;
+    }
+
+    public synchronized void close() {
+        try {
+            if (logChannel != null) {
+                logChannel.force(false);
+                log.close();
+            }
+            if (ack != null) {
+                ack.getFD().sync();
+                ack.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+        logChannel = null;
+        ack = null;
+    }
+
+    /**
+     * Append a message and wait until it is on disk. Concurrent callers share one fsync.
+     */
+    public Entry enqueue(String phone, String message, int priority) throws IOException {
+        Entry entry = append(phone, message, priority);
+        sync(entry.endOffset);
+        return entry;
+    }
+
+    /**
+     * Append a message without waiting for the disk, call {@link #sync(long)} with the end
+     * offset of the last appended entry before acknowledging a group of messages to the client.
+     */
+    public synchronized Entry append(String phone, String message, int priority) throws IOException {
+        if (logChannel == null) throw new IOException("Outbox is closed");
+        long id = Math.max(lastId + 1, System.currentTimeMillis() * 1000);
+        Entry entry = new Entry(id, phone, message, priority, System.currentTimeMillis());
+        byte[] record = encode(entry);
+        logChannel.write(ByteBuffer.wrap(record), writeOffset);
+        entry.offset = writeOffset;
+        entry.endOffset = writeOffset + record.length;
+        writeOffset = entry.endOffset;
+        lastId = id;
+        lanes[priority].add(entry);
+        pending++;
+        notify();
+        return entry;
+    }
+
+    /**
+     * Block until everything up to the given offset has been forced to disk. Whoever gets the
+     * lock first forces all writes appended so far, the threads queued behind it usually find
+     * their records already covered and return without another fsync.
+     */
+    public void sync(long offset) throws IOException {
+        if (syncedOffset >= offset) return;
+        synchronized (syncLock) {
+            if (syncedOffset >= offset) return;
+            FileChannel channel;
+            long target;
+            synchronized (this) {
+                channel = logChannel;
+                target = writeOffset;
+            }
+            if (channel == null) throw new IOException("Outbox is closed");
+            channel.force(false);
+            syncedOffset = target;
+        }
+    }
+
+    /**
+     * Take the next message by priority, waiting until it has reached the disk
+     *
+     * @return null if nothing arrived within the timeout
+     */
+    public Entry poll(long timeoutMillis) throws InterruptedException, IOException {
+        Entry entry;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (pending == 0) {
+                long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) return null;
+                wait(wait);
+            }
+            entry = lanes[nextLane()].poll();
+            pending--;
+        }
+        sync(entry.endOffset);
+        return entry;
+    }
+
+    /**
+     * @return the most urgent priority with messages waiting, -1 if the queue is empty
+     */
+    public synchronized int peekPriority() {
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (!lanes[lane].isEmpty()) return lane;
+        }
+        return -1;
+    }
+
+    /**
+     * Smooth weighted round robin over the lanes that hold messages
+     */
+    private int nextLane() {
+        int total = 0;
+        int best = -1;
+        for (int lane = 0; lane < lanes.length; lane++) {
+            if (lanes[lane].isEmpty()) {
+                // An idle lane does not save up credit for later
+                credits[lane] = 0;
+                continue;
+            }
+            credits[lane] += WEIGHTS[lane];
+            total += WEIGHTS[lane];
+            if (best < 0 || credits[lane] > credits[best]) best = lane;
+        }
+        credits[best] -= total;
+        return best;
+    }
+
+    /**
+     * Mark the entry as handed over to the SmsManager
+     */
+    public void ack(Entry entry) throws IOException {
+        // syncLock first, so no fsync is in flight while the log may be truncated
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (ack == null) return;
+                if (entry.offset != ackedOffset) {
+                    // Something before it is still held back, remember just this record
+                    ackedAhead.put(entry.offset, entry.endOffset);
+                    if (ack.length() < 8) {
+                        writeAcks();
+                    } else {
+                        ack.seek(ack.length());
+                        ack.writeLong(entry.offset);
+                        ack.writeLong(entry.endOffset);
+                    }
+                } else {
+                    ackedOffset = entry.endOffset;
+                    Long end;
+                    while ((end = ackedAhead.remove(ackedOffset)) != null) {
+                        ackedOffset = end;
+                    }
+                    if (ackedOffset == writeOffset && pending == 0) {
+                        // Everything is handed over, start both files over
+                        logChannel.truncate(0);
+                        writeOffset = 0;
+                        syncedOffset = 0;
+                        ackedOffset = 0;
+                    }
+                    writeAcks();
+                }
+                if (++unsyncedAcks >= ACK_SYNC_INTERVAL || pending == 0) {
+                    ack.getFD().sync();
+                    unsyncedAcks = 0;
+                }
+            }
+        }
+    }
+
+    private void writeAcks() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + ackedAhead.size() * 16);
+        buffer.putLong(ackedOffset);
+        for (Map.Entry<Long, Long> range : ackedAhead.entrySet()) {
+            buffer.putLong(range.getKey()).putLong(range.getValue());
+        }
+        ack.seek(0);
+        ack.write(buffer.array());
+        ack.setLength(buffer.capacity());
+    }
+
+    /**
+     * @return why the message cannot be queued, or null if it can
+     */
+    public static String validate(String phone, String message) {
+        if (phone == null || phone.trim().isEmpty() || message == null || message.isEmpty()) {
+            return "Both phone and message are required.";
+        }
+        if (phone.length() > 64) {
+            return "Phone number is too long.";
+        }
+        if (message.length() > MAX_MESSAGE_LENGTH) {
+            return "Message is too long.";
+        }
+        return null;
+    }
+
+    /**
+     * @param priority urgent, normal or bulk, null or empty for normal
+     * @return the priority, or -1 if the name is unknown
+     */
+    public static int priorityOf(String priority) {
+        if (priority == null || priority.isEmpty()) return NORMAL;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (PRIORITIES[i].equalsIgnoreCase(priority)) return i;
+        }
+        return -1;
+    }
+
+    public static String priorityName(int priority) {
+        return PRIORITIES[priority];
+    }
+
+    public static int priorityCount() {
+        return PRIORITIES.length;
+    }
+
+    public synchronized int size() {
+        return pending;
+    }
+
+    /**
+     * @return messages waiting in the lane of the given priority
+     */
+    public synchronized int size(int priority) {
+        return lanes[priority].size();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayDeque<Entry>[] newLanes() {
+        ArrayDeque<Entry>[] lanes = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        return lanes;
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entry.message.length() * 3);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeByte(RECORD_VERSION);
+        out.writeByte(entry.priority);
+        out.writeLong(entry.id);
+        out.writeLong(entry.acceptedAt);
+        out.writeUTF(entry.phone);
+        out.writeUTF(entry.message);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_SIZE, record.length - HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(record, 0, HEADER_SIZE);
+        header.putInt(record.length - HEADER_SIZE);
+        header.putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * @return the record at offset, or null at the end of the log or on a damaged record
+     */
+    private Entry readRecord(long offset) throws IOException {
+        if (offset + HEADER_SIZE > log.length()) return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        logChannel.read(header, offset);
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length <= 0 || offset + HEADER_SIZE + length > log.length()) return null;
+
+        byte[] payload = new byte[length];
+        logChannel.read(ByteBuffer.wrap(payload), offset + HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) return null;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int version = in.readByte();
+        if (version < 1 || version > RECORD_VERSION) return null;
+        // Version 1 records were written before there were priorities
+        int priority = version >= 2 ? in.readByte() : NORMAL;
+        if (priority < 0 || priority >= PRIORITIES.length) return null;
+        long id = in.readLong();
+        long acceptedAt = in.readLong();
+        Entry entry = new Entry(id, in.readUTF(), in.readUTF(), priority, acceptedAt);
+        entry.offset = offset;
+        entry.endOffset = offset + HEADER_SIZE + length;
+        return entry;
+    }
+
+    public static class Entry {
+        public final long id;
+        public final String phone;
+        public final String message;
+        public final int priority;
+        public final long acceptedAt;
+        /**
+         * Segments the message is planned in without national language tables, which is at
+         * least as many as the SmsManager splits it into
+         */
+        public final int parts;
+        long offset;
+        long endOffset;
+
+        Entry(long id, String phone, String message, int priority, long acceptedAt) {
+            this.id = id;
+            this.phone = phone;
+            this.message = message;
+            this.priority = priority;
+            this.acceptedAt = acceptedAt;
+            parts = SmsEncoding.plan(message, null, false).segments;
+        }
+    }
+}
@@ -3,46 +3,153 @@ package rocks.jahn.tinysmsgate;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.Build;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.telephony.SmsMessage;
+import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import rocks.jahn.tinysmsgate.lib.SmsPdu;
+
+/**
+ * Hands received texts to the inbox, the history and the forwarder.
+ *
+ * onReceive only takes the PDUs out of the intent and keeps the broadcast alive with goAsync();
+ * decoding, reassembly and storage run on a single worker thread, which also owns the
+ * {@link MultipartAssembler} for parts that arrive in separate broadcasts.
+ */
 public class SMSReceiver extends BroadcastReceiver {
+    private static final String FORMAT_3GPP = "3gpp";
+
+    private static ScheduledExecutorService worker;
+    private static MultipartAssembler assembler;
+
     public SMSReceiver() {
         super();
     }
 
+    private static synchronized ScheduledExecutorService worker() {
+        if (worker == null) {
+            assembler = new MultipartAssembler();
+            worker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SMSReceiver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return worker;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean forwardingEnabled = preferences.getBoolean("chkForwardSMS", false);
-        
-        if(forwardingEnabled) {
-            Bundle bundle = intent.getExtras();
-            SmsMessage[] messages = null;
-            String from = "";
-            String message = "";
-            
-            if(bundle != null) {
-                Object[] pdus = (Object[]) bundle.get("pdus");
-                
-                messages = new SmsMessage[pdus.length];
-                for(int i = 0; i < messages.length; i ++) {
-                    messages[i]= SmsMessage.createFromPdu((byte[]) pdus[i]);
-                    message += messages[i].getMessageBody().toString();
-                    from = messages[i].getOriginatingAddress();
+        final long receivedNanos = TraceRing.now();
+        final long receivedAt = System.currentTimeMillis();
+        Bundle bundle = intent.getExtras();
+        if (bundle == null) return;
+        final Object[] pdus = (Object[]) bundle.get("pdus");
+        if (pdus == null) return;
+        final String format = bundle.getString("format");
+        final Context appContext = context.getApplicationContext();
+        final PendingResult result = goAsync();
+        worker().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    receive(appContext, pdus, format, receivedAt, receivedNanos);
+                } finally {
+                    result.finish();
                 }
             }
-            
-            new SMSForwarder(
-                context,
-                from,
-                message,
-                preferences.getString("txtUrl", ""),
-                preferences.getString("lstSendMethod", "POST")
-            ).execute();
+        });
+    }
+
+    /**
+     * Decode the PDUs of one broadcast. Parts of concatenated texts go through the assembler,
+     * anything else is joined with the PDUs before it from the same sender as it always was.
+     */
+    private static void receive(final Context context, Object[] pdus, String format, long receivedAt,
+                                long receivedNanos) {
+        List<MultipartAssembler.Text> texts = new ArrayList<>(1);
+        String from = null;
+        boolean plain = false;
+        StringBuilder body = new StringBuilder();
+        for (Object pdu : pdus) {
+            byte[] bytes = (byte[]) pdu;
+            SmsMessage sms = decode(bytes, format);
+            if (sms == null) continue;
+            String sender = sms.getOriginatingAddress();
+            String part = sms.getMessageBody() == null ? "" : sms.getMessageBody();
+            SmsPdu.Concat concat = format == null || FORMAT_3GPP.equals(format) ? SmsPdu.concat(bytes) : null;
+            if (concat != null && concat.count > 1) {
+                MultipartAssembler.Text text = assembler.add(sender, concat, part, receivedAt, receivedNanos, texts);
+                if (text != null) texts.add(text);
+                continue;
+            }
+            if (plain && (from == null ? sender != null : !from.equals(sender))) {
+                texts.add(new MultipartAssembler.Text(from, body.toString(), receivedAt, receivedNanos));
+                body.setLength(0);
+            }
+            plain = true;
+            from = sender;
+            body.append(part);
+        }
+        if (plain) {
+            texts.add(new MultipartAssembler.Text(from, body.toString(), receivedAt, receivedNanos));
         }
+        for (MultipartAssembler.Text text : texts) {
+            deliver(context, text);
+        }
+
+        if (assembler.size() > 0) {
+            worker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (MultipartAssembler.Text text : assembler.expire(System.currentTimeMillis())) {
+                        deliver(context, text);
+                    }
+                }
+            }, MultipartAssembler.PART_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static SmsMessage decode(byte[] pdu, String format) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && format != null) {
+            return SmsMessage.createFromPdu(pdu, format);
+        }
+        return SmsMessage.createFromPdu(pdu);
     }
-    
-}
\ No newline at end of file
+
+    private static void deliver(Context context, MultipartAssembler.Text text) {
+        Metrics.get().smsReceived.increment();
+        boolean forwardingEnabled = GatewayConfig.get(context).forwardSMS;
+        InboundSMS sms = new InboundSMS(text.from, text.message, text.receivedAt,
+                forwardingEnabled ? MessageTraces.get().inbound.begin(text.receivedNanos) : -1);
+        long seq = 0;
+        try {
+            seq = SMSInbox.get(context).append(sms);
+        } catch (IOException e) {
+            Log.e(TinySMSGate.tag, "Cannot keep a received text in the inbox", e);
+        }
+        try {
+            MessageHistory.get(context).add(MessageHistory.INBOUND, seq, text.from, text.message,
+                    DeliveryStatusIndex.UNKNOWN, text.receivedAt);
+        } catch (IOException e) {
+            Log.e(TinySMSGate.tag, "Cannot add a received text to the history", e);
+        }
+        if(forwardingEnabled) {
+            SMSForwarder.get(context).forward(sms);
+        }
+    }
+
+}
@@ -0,0 +1,180 @@
+package rocks.jahn.tinysmsgate;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * The fields of a send request, read from the query string and an urlencoded or JSON body.
+ *
+ * The body is read straight from the connection into a buffer that every server thread keeps
+ * for the next request, and only phone, message, password and priority are decoded, everything
+ * else is skipped. Nothing goes through NanoHTTPD's parseBody and its temp files. Fields in the
+ * body win over the same fields in the query string.
+ */
+public class SendRequest {
+    private static final String[] NAMES = {"phone", "message", "password", "priority"};
+    private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+    private static final int PHONE = 0;
+    private static final int MESSAGE = 1;
+    private static final int PASSWORD = 2;
+    private static final int PRIORITY = 3;
+    private static final int INITIAL_BUFFER = 4096;
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<>();
+
+    private final String[] fields = new String[NAMES.length];
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            NAME_BYTES[i] = NAMES[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    public String getPhone() {
+        return fields[PHONE];
+    }
+
+    public String getMessage() {
+        return fields[MESSAGE];
+    }
+
+    public String getPassword() {
+        return fields[PASSWORD];
+    }
+
+    public String getPriority() {
+        return fields[PRIORITY];
+    }
+
+    /**
+     * @param parameters the query parameters NanoHTTPD decoded with the request line
+     */
+    public void readParameters(Map<String, String> parameters) {
+        for (int i = 0; i < NAMES.length; i++) {
+            String value = parameters.get(NAMES[i]);
+            if (value != null) fields[i] = value;
+        }
+    }
+
+    /**
+     * Read exactly length bytes of body and decode the fields in it
+     *
+     * @param contentType application/json, anything else is taken as urlencoded
+     * @throws IOException if the body ends early or is malformed
+     */
+    public void readBody(InputStream in, int length, String contentType) throws IOException {
+        byte[] buffer = buffer(length);
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) throw new EOFException("The body ended after " + read + " of " + length + " bytes");
+            read += n;
+        }
+        if (contentType != null && contentType.regionMatches(true, 0, "application/json", 0, 16)) {
+            readJson(buffer, length);
+        } else {
+            readForm(buffer, length);
+        }
+    }
+
+    private static byte[] buffer(int length) {
+        byte[] buffer = BUFFER.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, INITIAL_BUFFER)];
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    private void readJson(byte[] buffer, int length) throws IOException {
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(new ByteArrayInputStream(buffer, 0, length), StandardCharsets.UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                int field = field(reader.nextName());
+                if (field < 0 || reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                } else {
+                    // Numbers are fine too, phone numbers often come as one
+                    fields[field] = reader.nextString();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            throw new IOException("Expected a JSON object. " + e.getMessage());
+        }
+    }
+
+    private static int field(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode name=value pairs separated by &amp;, percent escapes are decoded in place
+     */
+    private void readForm(byte[] buffer, int length) throws IOException {
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            int equals = -1;
+            while (end < length && buffer[end] != '&') {
+                if (equals < 0 && buffer[end] == '=') equals = end;
+                end++;
+            }
+            if (equals > start) {
+                int nameLength = decode(buffer, start, equals);
+                int field = field(buffer, start, nameLength);
+                if (field >= 0) {
+                    int valueLength = decode(buffer, equals + 1, end);
+                    fields[field] = new String(buffer, equals + 1, valueLength, StandardCharsets.UTF_8);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    private static int field(byte[] buffer, int offset, int length) {
+        for (int i = 0; i < NAME_BYTES.length; i++) {
+            byte[] name = NAME_BYTES[i];
+            if (name.length != length) continue;
+            int j = 0;
+            while (j < length && buffer[offset + j] == name[j]) j++;
+            if (j == length) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decode + and %XX between from and to, writing the bytes from the start of the range
+     *
+     * @return the number of decoded bytes
+     */
+    private static int decode(byte[] buffer, int from, int to) throws IOException {
+        int out = from;
+        for (int i = from; i < to; i++) {
+            byte b = buffer[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                int high = i + 2 < to ? Character.digit(buffer[i + 1], 16) : -1;
+                int low = high >= 0 ? Character.digit(buffer[i + 2], 16) : -1;
+                if (low < 0) throw new IOException("Bad percent escape in the form body");
+                b = (byte) (high << 4 | low);
+                i += 2;
+            }
+            buffer[out++] = b;
+        }
+        return out - from;
+    }
+}
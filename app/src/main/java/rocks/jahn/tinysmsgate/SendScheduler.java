@@ -0,0 +1,274 @@
+package rocks.jahn.tinysmsgate;
+
+import android.content.SharedPreferences;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces messages from the {@link SMSOutbox} to the SmsManager.
+ *
+ * Android asks the user to confirm, or quietly drops messages, once an app sends more than the
+ * system limit, so sends go through a global token bucket (txtSendRate messages per minute,
+ * bursts of up to txtSendBurst) and one bucket per destination (txtSendPerNumberRate per
+ * minute). A message whose destination is over its limit is held back, in order with the later
+ * messages of its priority for that destination, while messages for other destinations go
+ * ahead. A held back message is only taken before the outbox when no message of a more urgent
+ * lane is waiting there. Nothing is failed for being over a limit, it only waits longer.
+ *
+ * Android's limit and the carriers count the parts of a multipart message, so a message takes
+ * one token per part from every bucket, see {@link SMSOutbox.Entry#parts}.
+ *
+ * Only the dispatcher thread calls {@link #next}, the metrics can be read from any thread.
+ */
+public class SendScheduler {
+    private static final int MAX_DESTINATIONS = 10000;
+    private static final long CONFIG_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final SharedPreferences preferences;
+    private final TokenBucket global = new TokenBucket();
+    private final LinkedHashMap<String, TokenBucket> destinations =
+            new LinkedHashMap<String, TokenBucket>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+                    return size() > MAX_DESTINATIONS && !isDeferred(eldest.getKey());
+                }
+            };
+    /**
+     * Messages over their destination's limit, by priority and then by destination in the order
+     * they were held back
+     */
+    private final LinkedHashMap<String, ArrayDeque<SMSOutbox.Entry>>[] deferred = newDeferred();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram[] laneWait = new LatencyHistogram[SMSOutbox.priorityCount()];
+    private final RateMeter throughput = new RateMeter();
+    private final RateMeter segmentThroughput = new RateMeter();
+    private volatile int deferredCount;
+    private double perDestinationRate;
+    private long configuredAt;
+    private boolean configured;
+
+    public SendScheduler(SharedPreferences preferences) {
+        this.preferences = preferences;
+        for (int i = 0; i < laneWait.length; i++) {
+            laneWait[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Wait for the next message that may be sent now
+     *
+     * @return null if there is none within the timeout
+     */
+    public SMSOutbox.Entry next(SMSOutbox outbox, long timeoutMillis) throws InterruptedException, IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            long now = System.nanoTime();
+            configure(now);
+            int waiting = outbox.peekPriority();
+            SMSOutbox.Entry entry = takeDeferred(now, waiting < 0 ? deferred.length - 1 : waiting);
+            if (entry == null) {
+                long wait = Math.min(deadline, nextDeferredAt(now)) - now;
+                if (wait <= 0 && now >= deadline) return null;
+                entry = outbox.poll(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                if (entry == null) continue;
+                if (deferred[entry.priority].containsKey(entry.phone) || destination(entry.phone, now).delay(now, entry.parts) > 0) {
+                    defer(entry, false);
+                    continue;
+                }
+            }
+
+            long delay = global.delay(now, entry.parts);
+            if (delay > 0) {
+                if (now + delay > deadline) {
+                    // Keep the caller responsive, the message is first in line next time
+                    TimeUnit.NANOSECONDS.sleep(Math.max(0, deadline - now));
+                    defer(entry, true);
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.sleep(delay);
+                now = System.nanoTime();
+            }
+            global.take(now, entry.parts);
+            destination(entry.phone, now).take(now, entry.parts);
+            long waited = System.currentTimeMillis() - entry.acceptedAt;
+            queueWait.record(waited);
+            laneWait[entry.priority].record(waited);
+            throughput.mark();
+            return entry;
+        }
+    }
+
+    /**
+     * Milliseconds from acceptance of a message until it is handed to the SmsManager
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Milliseconds from acceptance until handed to the SmsManager, for messages of one priority
+     */
+    public LatencyHistogram getQueueWait(int priority) {
+        return laneWait[priority];
+    }
+
+    /**
+     * @return messages handed to the SmsManager in the last minute
+     */
+    public long getSentLastMinute() {
+        return throughput.getLastMinute();
+    }
+
+    /**
+     * Count the segments a message was sent in, once it is with the SmsManager
+     */
+    public void markSegments(int segments) {
+        segmentThroughput.mark(segments);
+    }
+
+    /**
+     * @return segments handed to the SmsManager in the last minute
+     */
+    public long getSegmentsLastMinute() {
+        return segmentThroughput.getLastMinute();
+    }
+
+    /**
+     * @return messages held back by their destination's limit
+     */
+    public int getDeferred() {
+        return deferredCount;
+    }
+
+    private void configure(long now) {
+        if (configured && now - configuredAt < CONFIG_INTERVAL) return;
+        configured = true;
+        configuredAt = now;
+        global.configure(GatewayConfig.getIntPreference(preferences, "txtSendRate", 30),
+                GatewayConfig.getIntPreference(preferences, "txtSendBurst", 10), now);
+        perDestinationRate = GatewayConfig.getIntPreference(preferences, "txtSendPerNumberRate", 6);
+        for (TokenBucket bucket : destinations.values()) {
+            bucket.configure(perDestinationRate, perDestinationRate, now);
+        }
+    }
+
+    private TokenBucket destination(String phone, long now) {
+        TokenBucket bucket = destinations.get(phone);
+        if (bucket == null) {
+            bucket = new TokenBucket();
+            bucket.configure(perDestinationRate, perDestinationRate, now);
+            destinations.put(phone, bucket);
+        }
+        return bucket;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static LinkedHashMap<String, ArrayDeque<SMSOutbox.Entry>>[] newDeferred() {
+        LinkedHashMap<String, ArrayDeque<SMSOutbox.Entry>>[] deferred = new LinkedHashMap[SMSOutbox.priorityCount()];
+        for (int i = 0; i < deferred.length; i++) {
+            deferred[i] = new LinkedHashMap<>();
+        }
+        return deferred;
+    }
+
+    private boolean isDeferred(String phone) {
+        for (LinkedHashMap<String, ArrayDeque<SMSOutbox.Entry>> lane : deferred) {
+            if (lane.containsKey(phone)) return true;
+        }
+        return false;
+    }
+
+    private void defer(SMSOutbox.Entry entry, boolean first) {
+        ArrayDeque<SMSOutbox.Entry> queue = deferred[entry.priority].get(entry.phone);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            deferred[entry.priority].put(entry.phone, queue);
+        }
+        if (first) {
+            queue.addFirst(entry);
+        } else {
+            queue.addLast(entry);
+        }
+        deferredCount++;
+    }
+
+    /**
+     * Take the most urgent held back message whose destination may be sent to again
+     *
+     * @param lowest the least urgent priority to consider
+     */
+    private SMSOutbox.Entry takeDeferred(long now, int lowest) {
+        for (int priority = 0; priority <= lowest; priority++) {
+            Iterator<Map.Entry<String, ArrayDeque<SMSOutbox.Entry>>> iterator = deferred[priority].entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, ArrayDeque<SMSOutbox.Entry>> held = iterator.next();
+                if (destination(held.getKey(), now).delay(now, held.getValue().peekFirst().parts) > 0) continue;
+                SMSOutbox.Entry entry = held.getValue().pollFirst();
+                if (held.getValue().isEmpty()) iterator.remove();
+                deferredCount--;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return when the first held back message may go, Long.MAX_VALUE if there is none
+     */
+    private long nextDeferredAt(long now) {
+        long next = Long.MAX_VALUE;
+        for (LinkedHashMap<String, ArrayDeque<SMSOutbox.Entry>> lane : deferred) {
+            for (Map.Entry<String, ArrayDeque<SMSOutbox.Entry>> held : lane.entrySet()) {
+                long delay = destination(held.getKey(), now).delay(now, held.getValue().peekFirst().parts);
+                next = Math.min(next, now + delay);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Refills continuously at the configured rate up to its capacity, one token per part. A
+     * message with more parts than the capacity goes once the bucket is full and leaves it in
+     * debt, so the rate still holds on average.
+     */
+    static class TokenBucket {
+        private double capacity;
+        private double perNano;
+        private double tokens = -1;
+        private long updatedAt;
+
+        void configure(double perMinute, double burst, long now) {
+            if (tokens >= 0) refill(now);
+            capacity = Math.max(1, burst);
+            perNano = perMinute / TimeUnit.MINUTES.toNanos(1);
+            tokens = tokens < 0 ? capacity : Math.min(tokens, capacity);
+            updatedAt = now;
+        }
+
+        /**
+         * @return nanoseconds until the tokens for a message of that many parts are available
+         */
+        long delay(long now, int parts) {
+            refill(now);
+            double needed = Math.min(parts, capacity);
+            return tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) / perNano);
+        }
+
+        void take(long now, int parts) {
+            refill(now);
+            tokens -= parts;
+        }
+
+        private void refill(long now) {
+            if (now > updatedAt) {
+                tokens = Math.min(capacity, tokens + (now - updatedAt) * perNano);
+                updatedAt = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package rocks.jahn.tinysmsgate;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.telephony.SmsManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SIMs messages can be sent from, one SmsManager per active subscription.
+ *
+ * Messages go to the SIM pinned by the longest matching prefix in txtSimRoutes
+ * ("+49=1, +44=2", SIM slots counted from 1), otherwise round robin or to the SIM with the
+ * fewest sends awaiting their SENT broadcast, depending on lstSimStrategy. Every SIM has its own
+ * token bucket (txtSimRate messages per minute), a message takes one token per part.
+ *
+ * A SIM whose sends fail {@link #FAILURE_THRESHOLD} times in a row is drained: it gets no
+ * messages for a cool-down that doubles with each further failure, up to
+ * {@link #MAX_COOLDOWN}, and the other SIMs take over its traffic, pinned routes included.
+ * After the cool-down it is tried again and one successful send makes it healthy.
+ *
+ * Subscriptions are listed again every minute. Without READ_PHONE_STATE, or before API 22,
+ * only the default SmsManager is used, and a missing permission is reported by
+ * {@link #getProblem}.
+ */
+public class SimPool {
+    private static final String TAG = "SimPool";
+    public static final String STRATEGY_ROUND_ROBIN = "ROUND_ROBIN";
+    public static final String STRATEGY_LEAST_LOADED = "LEAST_LOADED";
+    /** Subscription id of the default SmsManager when subscriptions cannot be listed */
+    public static final int DEFAULT_SUBSCRIPTION = -1;
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BASE_COOLDOWN = TimeUnit.SECONDS.toNanos(30);
+    private static final long MAX_COOLDOWN = TimeUnit.MINUTES.toNanos(10);
+    private static final long REFRESH_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+    private final Context context;
+    private final SharedPreferences preferences;
+    private final SmsManager defaultManager;
+    private List<Sim> sims = Collections.emptyList();
+    private List<String> routePrefixes = new ArrayList<>();
+    private List<Integer> routeSlots = new ArrayList<>();
+    private String strategy;
+    private String problem;
+    private int nextSim;
+    private long refreshedAt;
+    private boolean refreshed;
+
+    public SimPool(Context context, SharedPreferences preferences, SmsManager defaultManager) {
+        this.context = context;
+        this.preferences = preferences;
+        this.defaultManager = defaultManager;
+    }
+
+    /**
+     * Pick a SIM for the destination and take a token per part of the message
+     *
+     * @return null if no suitable SIM may send right now, see {@link #getWait}
+     */
+    public synchronized Sim select(String phone, int parts) {
+        long now = System.nanoTime();
+        refreshIfDue(now);
+        List<Sim> candidates = candidates(phone, now);
+        Sim chosen = null;
+        int count = candidates.size();
+        for (int i = 0; i < count; i++) {
+            Sim sim = candidates.get((nextSim + i) % count);
+            if (sim.bucket.delay(now, parts) > 0) continue;
+            if (chosen == null) {
+                chosen = sim;
+                if (!STRATEGY_LEAST_LOADED.equals(strategy)) break;
+            } else if (sim.inFlight < chosen.inFlight) {
+                chosen = sim;
+            }
+        }
+        if (chosen == null) return null;
+        nextSim = (candidates.indexOf(chosen) + 1) % count;
+        chosen.bucket.take(now, parts);
+        chosen.inFlight++;
+        chosen.sent++;
+        return chosen;
+    }
+
+    /**
+     * @return nanoseconds until a SIM for the destination may send a message of that many parts
+     */
+    public synchronized long getWait(String phone, int parts) {
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (Sim sim : candidates(phone, now)) {
+            wait = Math.min(wait, sim.bucket.delay(now, parts));
+        }
+        if (wait == Long.MAX_VALUE) {
+            // Every SIM is drained, wait for the first cool-down to end
+            for (Sim sim : sims) {
+                wait = Math.min(wait, sim.drainedUntil - now);
+            }
+        }
+        return Math.max(0, wait);
+    }
+
+    /**
+     * Record the outcome of a send, from the SENT broadcast or a failed sendTextMessage call
+     */
+    public synchronized void result(int subscriptionId, boolean success) {
+        for (Sim sim : sims) {
+            if (sim.subscriptionId != subscriptionId) continue;
+            sim.inFlight = Math.max(0, sim.inFlight - 1);
+            if (success) {
+                sim.failures = 0;
+                sim.cooldown = 0;
+            } else {
+                sim.failed++;
+                if (++sim.failures >= FAILURE_THRESHOLD) {
+                    sim.cooldown = sim.cooldown == 0 ? BASE_COOLDOWN : Math.min(sim.cooldown * 2, MAX_COOLDOWN);
+                    sim.drainedUntil = System.nanoTime() + sim.cooldown;
+                    Log.w(TAG, "Draining SIM " + sim.slot + " for " + TimeUnit.NANOSECONDS.toSeconds(sim.cooldown)
+                            + "s after " + sim.failures + " failed sends");
+                }
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return a snapshot of every SIM's state
+     */
+    public synchronized List<SimStatus> getStatus() {
+        long now = System.nanoTime();
+        refreshIfDue(now);
+        List<SimStatus> status = new ArrayList<>();
+        for (Sim sim : sims) {
+            status.add(new SimStatus(sim.subscriptionId, sim.slot, sim.name, sim.isHealthy(now),
+                    sim.failures, sim.inFlight, sim.sent, sim.failed));
+        }
+        return status;
+    }
+
+    /**
+     * @return why the SIMs cannot be listed, null if they can
+     */
+    public synchronized String getProblem() {
+        refreshIfDue(System.nanoTime());
+        return problem;
+    }
+
+    /**
+     * The SIM pinned for the destination if it is healthy, otherwise every healthy SIM
+     */
+    private List<Sim> candidates(String phone, long now) {
+        int slot = route(phone);
+        List<Sim> healthy = new ArrayList<>(sims.size());
+        for (Sim sim : sims) {
+            if (!sim.isHealthy(now)) continue;
+            if (sim.slot == slot) return Collections.singletonList(sim);
+            healthy.add(sim);
+        }
+        return healthy;
+    }
+
+    private int route(String phone) {
+        int slot = 0;
+        int longest = 0;
+        for (int i = 0; i < routePrefixes.size(); i++) {
+            String prefix = routePrefixes.get(i);
+            if (prefix.length() > longest && phone.startsWith(prefix)) {
+                longest = prefix.length();
+                slot = routeSlots.get(i);
+            }
+        }
+        return slot;
+    }
+
+    private void refreshIfDue(long now) {
+        if (refreshed && now - refreshedAt < REFRESH_INTERVAL) return;
+        refreshed = true;
+        refreshedAt = now;
+        strategy = preferences.getString("lstSimStrategy", STRATEGY_ROUND_ROBIN);
+        parseRoutes(preferences.getString("txtSimRoutes", ""));
+        int rate = GatewayConfig.getIntPreference(preferences, "txtSimRate", 30);
+        int burst = GatewayConfig.getIntPreference(preferences, "txtSendBurst", 10);
+
+        List<Sim> found = new ArrayList<>();
+        problem = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            try {
+                SubscriptionManager subscriptions =
+                        (SubscriptionManager) context.getSystemService(Context.TELEPHONY_SUBSCRIPTION_SERVICE);
+                List<SubscriptionInfo> infos = subscriptions == null ? null
+                        : subscriptions.getActiveSubscriptionInfoList();
+                if (infos != null) {
+                    for (SubscriptionInfo info : infos) {
+                        Sim sim = find(info.getSubscriptionId());
+                        if (sim == null) {
+                            sim = new Sim(info.getSubscriptionId(), info.getSimSlotIndex() + 1,
+                                    String.valueOf(info.getDisplayName()),
+                                    SmsManager.getSmsManagerForSubscriptionId(info.getSubscriptionId()));
+                        }
+                        found.add(sim);
+                    }
+                }
+            } catch (SecurityException e) {
+                problem = "READ_PHONE_STATE is not granted, sending from the default SIM only.";
+                Log.w(TAG, problem);
+            }
+        }
+        if (found.isEmpty()) {
+            Sim sim = find(DEFAULT_SUBSCRIPTION);
+            found.add(sim != null ? sim : new Sim(DEFAULT_SUBSCRIPTION, 1, "default", defaultManager));
+        }
+        for (Sim sim : found) {
+            sim.bucket.configure(rate, burst, now);
+        }
+        if (found.size() != sims.size()) {
+            Log.i(TAG, "Sending from " + found.size() + " SIM(s)");
+        }
+        sims = found;
+    }
+
+    private Sim find(int subscriptionId) {
+        for (Sim sim : sims) {
+            if (sim.subscriptionId == subscriptionId) return sim;
+        }
+        return null;
+    }
+
+    private void parseRoutes(String routes) {
+        List<String> prefixes = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        for (String rule : routes.split("[,;\\n]")) {
+            int separator = rule.indexOf('=');
+            if (separator <= 0) continue;
+            try {
+                slots.add(Integer.parseInt(rule.substring(separator + 1).trim()));
+                prefixes.add(rule.substring(0, separator).trim());
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Ignoring SIM route " + rule.trim());
+            }
+        }
+        routePrefixes = prefixes;
+        routeSlots = slots;
+    }
+
+    public static class Sim {
+        public final int subscriptionId;
+        public final int slot;
+        public final String name;
+        public final SmsManager manager;
+        // guarded by the pool
+        private final SendScheduler.TokenBucket bucket = new SendScheduler.TokenBucket();
+        private int inFlight;
+        private int failures;
+        private long cooldown;
+        private long drainedUntil;
+        private long sent;
+        private long failed;
+
+        Sim(int subscriptionId, int slot, String name, SmsManager manager) {
+            this.subscriptionId = subscriptionId;
+            this.slot = slot;
+            this.name = name;
+            this.manager = manager;
+        }
+
+        private boolean isHealthy(long now) {
+            return failures < FAILURE_THRESHOLD || now >= drainedUntil;
+        }
+    }
+
+    public static class SimStatus {
+        private int subscription;
+        private int slot;
+        private String name;
+        private boolean healthy;
+        private int failures;
+        private int inFlight;
+        private long sent;
+        private long failed;
+
+        public SimStatus(int subscription, int slot, String name, boolean healthy, int failures, int inFlight,
+                         long sent, long failed) {
+            this.subscription = subscription;
+            this.slot = slot;
+            this.name = name;
+            this.healthy = healthy;
+            this.failures = failures;
+            this.inFlight = inFlight;
+            this.sent = sent;
+            this.failed = failed;
+        }
+
+        public int getSubscription() {
+            return subscription;
+        }
+
+        public int getSlot() {
+            return slot;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * @return failed sends in a row
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return sends still waiting for their SENT broadcast
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+    }
+}
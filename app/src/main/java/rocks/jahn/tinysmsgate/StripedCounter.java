@@ -0,0 +1,73 @@
+package rocks.jahn.tinysmsgate;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of counters that many threads add to without contending on one memory word.
+ *
+ * Every cell is kept once per stripe and a thread always adds to the stripe picked by its id,
+ * reading sums the stripes. The stripes are a cache line apart, so threads on different stripes
+ * never share one. LongAdder does the same but needs API 24.
+ */
+public class StripedCounter {
+    private static final int STRIPES = stripes();
+    /** Longs per cache line */
+    private static final int PADDING = 8;
+
+    private final int cells;
+    private final int stride;
+    private final AtomicLongArray values;
+
+    public StripedCounter() {
+        this(1);
+    }
+
+    /**
+     * @param cells number of separate counters, addressed from 0
+     */
+    public StripedCounter(int cells) {
+        this.cells = cells;
+        this.stride = (cells + PADDING - 1) / PADDING * PADDING + PADDING;
+        this.values = new AtomicLongArray(STRIPES * stride);
+    }
+
+    public void increment() {
+        add(0, 1);
+    }
+
+    public void add(long delta) {
+        add(0, delta);
+    }
+
+    public void add(int cell, long delta) {
+        values.addAndGet(stripe() * stride + cell, delta);
+    }
+
+    public long get() {
+        return get(0);
+    }
+
+    public long get(int cell) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += values.get(stripe * stride + cell);
+        }
+        return sum;
+    }
+
+    public int getCells() {
+        return cells;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * @return the number of processors rounded up to a power of two, at most 8
+     */
+    private static int stripes() {
+        int processors = Math.min(8, Runtime.getRuntime().availableProcessors());
+        return Integer.highestOneBit(Math.max(1, processors * 2 - 1));
+    }
+}
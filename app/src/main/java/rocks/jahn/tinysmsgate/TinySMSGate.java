@@ -4,12 +4,15 @@ import rocks.jahn.tinysmsgate.SMSGateService.SMSGateServiceBinder;
 import rocks.jahn.tinysmsgate.lib.NetworkUtil;
 import rocks.jahn.tinysmsgate.lib.StringUtil;
 
+import android.Manifest;
 import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
@@ -19,10 +22,18 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class TinySMSGate extends Activity {
     public static final String tag = "SMSGate";
+    private static final int REQUEST_PERMISSIONS = 1;
+    private static final String[] PERMISSIONS = {
+            Manifest.permission.SEND_SMS,
+            Manifest.permission.RECEIVE_SMS,
+            // Lists the SIMs to send from, without it only the default SIM is used
+            Manifest.permission.READ_PHONE_STATE
+    };
     
     private SharedPreferences preferences;
     private SMSGateService serverService = null;
@@ -42,6 +53,7 @@ public class TinySMSGate extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_smsgate_interface);
+        requestMissingPermissions();
         Button btnReceiverToggle = (Button) findViewById(R.id.btnReceiverToggle);
         btnReceiverToggle.setOnClickListener(new View.OnClickListener() {
             
@@ -94,6 +106,23 @@ public class TinySMSGate extends Activity {
         });
     }
 
+    /**
+     * Ask for the dangerous permissions of the manifest, which are not granted at install time
+     * from API 23 on
+     */
+    private void requestMissingPermissions() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return;
+        List<String> missing = new ArrayList<>();
+        for (String permission : PERMISSIONS) {
+            if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+                missing.add(permission);
+            }
+        }
+        if (!missing.isEmpty()) {
+            requestPermissions(missing.toArray(new String[0]), REQUEST_PERMISSIONS);
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
@@ -122,6 +151,16 @@ public class TinySMSGate extends Activity {
         TextView txtForwarding = (TextView) findViewById(R.id.txtForwarding);
         TextView txtPort = (TextView) findViewById(R.id.txtPort);
         TextView txtPage = (TextView) findViewById(R.id.txtPage);
+        TextView txtSpool = (TextView) findViewById(R.id.txtSpool);
+        
+        ForwardSpool spool = SMSForwarder.get(this).getSpool();
+        int spooled = spool.size();
+        if (spooled > 0) {
+            long minutes = (System.currentTimeMillis() - spool.oldestReceivedAt()) / 60000;
+            txtSpool.setText("Spooled: " + spooled + " (oldest " + minutes + " min)");
+        } else {
+            txtSpool.setText("Spooled: 0");
+        }
         
         if (preferences.getBoolean("chkForwardSMS", false)) {
             txtForwarding.setText("Forwarder On");
@@ -0,0 +1,303 @@
+package rocks.jahn.tinysmsgate;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When each message passed each stage of its way through the gateway, for the most recent
+ * messages only.
+ *
+ * A trace is one slot of a fixed table holding a timestamp per stage, from
+ * SystemClock.elapsedRealtimeNanos so time in deep sleep counts too. The slot is picked by
+ * Fibonacci hashing of the message id, which spreads consecutive ids evenly, and a new trace
+ * overwrites whatever trace held its slot, so the table keeps roughly the last
+ * {@link #getCapacity()} messages. Messages without an id of their own get one from
+ * {@link #begin(long)}. Marking a stage is a couple of atomic writes and never allocates; a mark
+ * for a trace that was overwritten meanwhile is dropped.
+ *
+ * Ids only grow, so a mark for an id newer than the trace in its slot opens the trace itself,
+ * and a later begin keeps the stages marked so far. A message that another thread picks up
+ * before its trace has begun keeps its stages.
+ */
+public class TraceRing {
+    private static final long UNUSED = Long.MIN_VALUE;
+
+    private final String[] stages;
+    private final int mask;
+    private final int bits;
+    private final AtomicLongArray ids;
+    private final AtomicLongArray times;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param stages names of the stages in the order messages pass them
+     * @param capacity number of traces kept, rounded up to a power of two
+     */
+    public TraceRing(String[] stages, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.stages = stages;
+        this.mask = size - 1;
+        this.bits = Integer.numberOfTrailingZeros(size);
+        this.ids = new AtomicLongArray(size);
+        this.times = new AtomicLongArray(size * stages.length);
+        for (int i = 0; i < size; i++) {
+            ids.set(i, UNUSED);
+        }
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Start a trace under the next id of this ring, with the first stage at startedAt
+     *
+     * @return the id to mark the later stages with
+     */
+    public long begin(long startedAt) {
+        long id = sequence.getAndIncrement();
+        begin(id, startedAt);
+        return id;
+    }
+
+    /**
+     * Start the trace of a message that has an id already, with the first stage at startedAt
+     */
+    public void begin(long id, long startedAt) {
+        int slot = slotOf(id);
+        synchronized (this) {
+            if (ids.get(slot) != id) reset(slot, id);
+            times.set(slot * stages.length, startedAt);
+        }
+    }
+
+    /**
+     * Record that the message reached the stage now, only the first time counts
+     */
+    public void mark(long id, int stage) {
+        mark(id, stage, now());
+    }
+
+    public void mark(long id, int stage, long at) {
+        if (id < 0) return;
+        int slot = slotOf(id);
+        if (ids.get(slot) != id) {
+            synchronized (this) {
+                long current = ids.get(slot);
+                if (current != id) {
+                    // A newer trace took the slot over, this one is gone
+                    if (current != UNUSED && current > id) return;
+                    reset(slot, id);
+                }
+            }
+        }
+        times.compareAndSet(slot * stages.length + stage, 0, at);
+    }
+
+    /**
+     * Give the slot to the trace of id with no stages marked, callers hold the lock
+     */
+    private void reset(int slot, long id) {
+        ids.set(slot, UNUSED);
+        int base = slot * stages.length;
+        for (int stage = 0; stage < stages.length; stage++) {
+            times.set(base + stage, 0);
+        }
+        ids.set(slot, id);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    private int slotOf(long id) {
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+    }
+
+    /**
+     * Percentiles of the time between consecutive stages and overall, and the slowest traces
+     *
+     * @param slowest how many of the slowest traces to list
+     */
+    public Report report(int slowest) {
+        List<long[]> traces = new ArrayList<>();
+        List<Long> traceIds = new ArrayList<>();
+        for (int slot = 0; slot <= mask; slot++) {
+            long id = ids.get(slot);
+            if (id == UNUSED) continue;
+            long[] trace = new long[stages.length];
+            for (int stage = 0; stage < stages.length; stage++) {
+                trace[stage] = times.get(slot * stages.length + stage);
+            }
+            // The slot may have been taken over while it was read, or the trace not begun yet
+            if (ids.get(slot) != id || trace[0] == 0) continue;
+            traces.add(trace);
+            traceIds.add(id);
+        }
+
+        List<StageStatus> stageStatus = new ArrayList<>();
+        for (int stage = 1; stage < stages.length; stage++) {
+            long[] millis = new long[traces.size()];
+            int count = 0;
+            for (long[] trace : traces) {
+                long from = previous(trace, stage);
+                if (trace[stage] != 0 && from != 0) millis[count++] = toMillis(trace[stage] - from);
+            }
+            stageStatus.add(new StageStatus(stages[stage], summary(millis, count)));
+        }
+
+        long[] totals = new long[traces.size()];
+        Integer[] order = new Integer[traces.size()];
+        for (int i = 0; i < traces.size(); i++) {
+            totals[i] = toMillis(last(traces.get(i)) - traces.get(i)[0]);
+            order[i] = i;
+        }
+        final long[] byTotal = totals;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(byTotal[b], byTotal[a]);
+            }
+        });
+        List<Trace> slow = new ArrayList<>();
+        for (int i = 0; i < Math.min(slowest, order.length); i++) {
+            long[] trace = traces.get(order[i]);
+            List<Long> offsets = new ArrayList<>(stages.length);
+            for (long at : trace) {
+                offsets.add(at == 0 ? null : toMillis(at - trace[0]));
+            }
+            slow.add(new Trace(traceIds.get(order[i]), totals[order[i]], offsets));
+        }
+        return new Report(Arrays.asList(stages), traces.size(), stageStatus,
+                summary(totals.clone(), totals.length), slow);
+    }
+
+    /**
+     * @return when the trace reached the last stage before the given one it has a time for
+     */
+    private static long previous(long[] trace, int stage) {
+        for (int i = stage - 1; i >= 0; i--) {
+            if (trace[i] != 0) return trace[i];
+        }
+        return 0;
+    }
+
+    private static long last(long[] trace) {
+        for (int i = trace.length - 1; i > 0; i--) {
+            if (trace[i] != 0) return trace[i];
+        }
+        return trace[0];
+    }
+
+    private static long toMillis(long nanos) {
+        return Math.max(0, nanos / 1000000);
+    }
+
+    private static LatencyHistogram.Summary summary(long[] values, int count) {
+        if (count == 0) return new LatencyHistogram.Summary(0, 0, 0, 0, 0);
+        Arrays.sort(values, 0, count);
+        return new LatencyHistogram.Summary(count, values[rank(0.5, count)], values[rank(0.9, count)],
+                values[rank(0.99, count)], values[count - 1]);
+    }
+
+    private static int rank(double quantile, int count) {
+        return Math.min(count - 1, (int) Math.ceil(quantile * count) - 1);
+    }
+
+    public static class Report {
+        private List<String> stages;
+        private int traced;
+        private List<StageStatus> stageTimes;
+        private LatencyHistogram.Summary total;
+        private List<Trace> slowest;
+
+        public Report(List<String> stages, int traced, List<StageStatus> stageTimes,
+                      LatencyHistogram.Summary total, List<Trace> slowest) {
+            this.stages = stages;
+            this.traced = traced;
+            this.stageTimes = stageTimes;
+            this.total = total;
+            this.slowest = slowest;
+        }
+
+        public List<String> getStages() {
+            return stages;
+        }
+
+        /**
+         * @return messages in the ring
+         */
+        public int getTraced() {
+            return traced;
+        }
+
+        /**
+         * @return milliseconds from the stage before to each stage
+         */
+        public List<StageStatus> getStageTimes() {
+            return stageTimes;
+        }
+
+        /**
+         * @return milliseconds from the first to the last stage reached so far
+         */
+        public LatencyHistogram.Summary getTotal() {
+            return total;
+        }
+
+        public List<Trace> getSlowest() {
+            return slowest;
+        }
+    }
+
+    public static class StageStatus {
+        private String stage;
+        private LatencyHistogram.Summary time;
+
+        public StageStatus(String stage, LatencyHistogram.Summary time) {
+            this.stage = stage;
+            this.time = time;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public LatencyHistogram.Summary getTime() {
+            return time;
+        }
+    }
+
+    public static class Trace {
+        private long id;
+        private long total;
+        private List<Long> stages;
+
+        public Trace(long id, long total, List<Long> stages) {
+            this.id = id;
+            this.total = total;
+            this.stages = stages;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return milliseconds from the first stage to each stage, null for stages not reached
+         */
+        public List<Long> getStages() {
+            return stages;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package rocks.jahn.tinysmsgate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP client for the outgoing webhooks.
+ *
+ * HttpURLConnection keeps connections alive and pools them per host, up to the process wide
+ * http.maxConnections (5 unless set), but a connection only goes back to the pool once its
+ * response has been read to the end and closed, so every response is drained here, error
+ * responses included, and connections are never disconnect()ed. Requests run on a small
+ * bounded pool; when its queue is full the submitting thread runs the request itself, which
+ * slows the producer down instead of piling up work.
+ */
+public class WebhookClient {
+    public static final String USER_AGENT = "TinySMSGate";
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    private final ThreadPoolExecutor executor;
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    /**
+     * A client without a pool of its own, for callers that run {@link #execute} on their own
+     * thread
+     */
+    public WebhookClient() {
+        executor = null;
+    }
+
+    /**
+     * @param threads concurrent requests
+     * @param queueSize requests waiting for a thread before callers run them themselves
+     */
+    public WebhookClient(int threads, int queueSize) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "WebhookClient-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        if (executor == null) throw new IllegalStateException("This client has no pool");
+        return executor.submit(task);
+    }
+
+    /**
+     * Round trip time of every request, in milliseconds
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * Send a request and read the whole response
+     *
+     * @param body null for no body
+     * @param gzip compress the body with Content-Encoding: gzip
+     * @return the response code
+     * @throws IOException on connection failures and timeouts
+     */
+    public int execute(String method, String url, String contentType, byte[] body, boolean gzip) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("User-Agent", USER_AGENT);
+        connection.setRequestProperty("Connection", "keep-alive");
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", contentType);
+            if (gzip) {
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setChunkedStreamingMode(0);
+                OutputStream output = new GZIPOutputStream(connection.getOutputStream());
+                output.write(body);
+                output.close();
+            } else {
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream output = connection.getOutputStream();
+                output.write(body);
+                output.close();
+            }
+        }
+
+        int responseCode = connection.getResponseCode();
+        InputStream response = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (response != null) {
+            drain(response);
+        }
+        requestLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return responseCode;
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        try {
+            byte[] buffer = new byte[1024];
+            while (input.read(buffer) >= 0) {
+                // discard, only the connection is wanted back
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) executor.shutdown();
+    }
+}
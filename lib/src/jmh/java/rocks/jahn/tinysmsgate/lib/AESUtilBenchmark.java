@@ -0,0 +1,107 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AESUtilBenchmark {
+    private static final String PASSWORD = "8119745113133020";
+    private static final byte[] SALT = "passcode.salt".getBytes();
+    private static final byte[] IV = "8119745113154120".getBytes();
+    private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+    /**
+     * PBKDF2 on every call, the key cache is emptied before each invocation
+     */
+    @State(Scope.Thread)
+    public static class Derivation {
+        @Param({"1000", "10000", "100000"})
+        int iterations;
+        byte[] plain = new byte[140];
+
+        @Setup(Level.Invocation)
+        public void clearCache() {
+            AESUtil.clearKeyCache();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Payload {
+        /** one SMS segment up to 1 MB */
+        @Param({"140", "4096", "65536", "1048576"})
+        int size;
+        byte[] plain;
+        byte[] cbc;
+        byte[] ecb;
+        byte[] gcm;
+
+        @Setup
+        public void setUp() {
+            plain = new byte[size];
+            new Random(size).nextBytes(plain);
+            cbc = AESUtil.aesCbcEncrypt(plain, KEY, IV);
+            ecb = AESUtil.aesEcbEncrypt(plain, KEY);
+            gcm = AESUtil.aesGcmEncrypt(plain, KEY, null);
+        }
+    }
+
+    @Benchmark
+    public byte[] deriveKey(Derivation state) {
+        return AESUtil.aesCbcEncrypt(state.plain, PASSWORD, SALT, state.iterations, IV);
+    }
+
+    /**
+     * Same credentials every time, the derived key comes from the cache
+     */
+    @Benchmark
+    public byte[] cachedKeyCbcEncrypt(Payload state) {
+        return AESUtil.aesCbcEncrypt(state.plain, PASSWORD, SALT, 10000, IV);
+    }
+
+    @Benchmark
+    public byte[] cbcEncrypt(Payload state) {
+        return AESUtil.aesCbcEncrypt(state.plain, KEY, IV);
+    }
+
+    @Benchmark
+    public byte[] cbcDecrypt(Payload state) {
+        return AESUtil.aesCbcDecrypt(state.cbc, KEY, IV);
+    }
+
+    @Benchmark
+    public byte[] ecbEncrypt(Payload state) {
+        return AESUtil.aesEcbEncrypt(state.plain, KEY);
+    }
+
+    @Benchmark
+    public byte[] ecbDecrypt(Payload state) {
+        return AESUtil.aesEcbDecrypt(state.ecb, KEY);
+    }
+
+    @Benchmark
+    public byte[] gcmEncrypt(Payload state) {
+        return AESUtil.aesGcmEncrypt(state.plain, KEY, null);
+    }
+
+    @Benchmark
+    public byte[] gcmDecrypt(Payload state) {
+        return AESUtil.aesGcmDecrypt(state.gcm, KEY, null);
+    }
+}
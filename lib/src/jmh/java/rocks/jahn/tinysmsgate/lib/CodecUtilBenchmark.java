@@ -0,0 +1,85 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecUtilBenchmark {
+    @Param({"16", "140", "4096"})
+    int size;
+    byte[] bytes;
+    String hex;
+    String base64;
+    byte[] encoded;
+    byte[] decoded;
+    StringBuilder builder = new StringBuilder();
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        hex = CodecUtil.hexBytesToString(bytes);
+        base64 = CodecUtil.base64BytesToString(bytes);
+        encoded = new byte[CodecUtil.hexLength(size) + CodecUtil.base64Length(size, false)];
+        decoded = new byte[size];
+    }
+
+    @Benchmark
+    public byte[] hexRoundTrip() {
+        return CodecUtil.hexStringToBytes(CodecUtil.hexBytesToString(bytes));
+    }
+
+    @Benchmark
+    public byte[] base64RoundTrip() {
+        return CodecUtil.base64StringToBytes(CodecUtil.base64BytesToString(bytes));
+    }
+
+    /**
+     * Into preallocated targets, no allocation per call
+     */
+    @Benchmark
+    public int hexRoundTripInto() {
+        builder.setLength(0);
+        CodecUtil.hexEncode(bytes, 0, size, builder);
+        return CodecUtil.hexDecode(builder, 0, builder.length(), decoded, 0);
+    }
+
+    @Benchmark
+    public int base64RoundTripInto() {
+        builder.setLength(0);
+        CodecUtil.base64Encode(bytes, 0, size, builder, false);
+        return CodecUtil.base64Decode(builder, 0, builder.length(), decoded, 0);
+    }
+
+    @Benchmark
+    public int base64EncodeAscii() {
+        return CodecUtil.base64Encode(bytes, 0, size, encoded, 0, true);
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return CodecUtil.hexStringToBytes(hex);
+    }
+
+    @Benchmark
+    public byte[] base64Decode() {
+        return CodecUtil.base64StringToBytes(base64);
+    }
+}
@@ -0,0 +1,45 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetworkUtilBenchmark {
+    /** Valid and invalid addresses of both families, every benchmark checks all of them */
+    String[] addresses = {
+            "192.168.1.1", "10.0.0.255", "256.1.1.1", "1.2.3", "fe80::1", "2001:db8:0:0:0:0:2:1",
+            "2001:db8::2:1", "::1", "2001:db8:::1", "not an address", "", "172.16.254.01"
+    };
+
+    @Benchmark
+    public int isIPv4Address() {
+        int valid = 0;
+        for (String address : addresses) {
+            if (NetworkUtil.isIPv4Address(address)) valid++;
+        }
+        return valid;
+    }
+
+    @Benchmark
+    public int isIPv6Address() {
+        int valid = 0;
+        for (String address : addresses) {
+            if (NetworkUtil.isIPv6Address(address)) valid++;
+        }
+        return valid;
+    }
+}
@@ -0,0 +1,78 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmsEncodingBenchmark {
+    /** Plain alphabet, Turkish shift tables and UCS-2 */
+    @Param({"gsm", "turkish", "ucs2"})
+    String alphabet;
+    @Param({"1", "4"})
+    int segments;
+    String text;
+    SmsEncoding.Plan plan = new SmsEncoding.Plan();
+    byte[] deliver;
+
+    @Setup
+    public void setUp() {
+        String words = alphabet.equals("gsm") ? "Your code is 4711, valid for 10 minutes. "
+                : alphabet.equals("turkish") ? "Do\u011frulama kodunuz 4711, \u015fifre i\u00e7in ge\u00e7erli. "
+                : "\u0412\u0430\u0448 \u043a\u043e\u0434 4711. ";
+        StringBuilder sb = new StringBuilder();
+        while (SmsEncoding.segmentCount(sb.toString() + words) <= segments) sb.append(words);
+        text = sb.toString();
+
+        // The first segment as it would arrive, an SMS-SUBMIT turned into an SMS-DELIVER
+        byte[] submit = SmsPdu.submit("+491715550100", text, 1, false).get(0);
+        int address = 2 + ((submit[3] & 0xff) + 1) / 2;
+        int header = 3 + address + 2;
+        deliver = new byte[submit.length - 1 + 7];
+        deliver[1] = (byte) (submit[1] & 0x40);
+        System.arraycopy(submit, 3, deliver, 2, address + 2);
+        System.arraycopy(submit, header, deliver, 2 + address + 2 + 7, submit.length - header);
+        deliver[2 + address + 2] = 0x42;
+        deliver[2 + address + 3] = 0x01;
+        deliver[2 + address + 4] = 0x01;
+    }
+
+    /**
+     * No allocation per call
+     */
+    @Benchmark
+    public int segmentCount() {
+        return SmsEncoding.segmentCount(text);
+    }
+
+    @Benchmark
+    public List<String> planAndSplit() {
+        return SmsEncoding.split(text, SmsEncoding.plan(text, plan));
+    }
+
+    @Benchmark
+    public List<byte[]> submit() {
+        return SmsPdu.submit("+491715550100", text, 1, true);
+    }
+
+    @Benchmark
+    public SmsPdu.Deliver deliver() {
+        return SmsPdu.deliver(deliver);
+    }
+}
@@ -0,0 +1,42 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilBenchmark {
+    @Param({"100", "10000", "1000000"})
+    int size;
+    List<String> phones;
+
+    @Setup
+    public void setUp() {
+        phones = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            phones.add("+4915" + (10000000 + i));
+        }
+    }
+
+    @Benchmark
+    public String implode() {
+        return StringUtil.implode(phones, ",");
+    }
+}
@@ -3,24 +3,69 @@ package rocks.jahn.tinysmsgate.lib;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * AES helpers.
+ *
+ * Keys derived from a password with PBKDF2 are cached, at most {@link #KEY_CACHE_SIZE} of them,
+ * so that many small payloads under the same credentials pay for the derivation once. The cache
+ * is keyed by a SHA-256 digest of (iterations, salt, password), the password itself is never
+ * kept, and keys are overwritten with zeros when they are evicted. Cipher instances are reused
+ * per thread.
+ *
+ * Besides whole arrays there are ByteBuffer variants, which work on heap and direct buffers
+ * without copying them to arrays first, and stream wrappers, which encrypt and decrypt in
+ * constant memory. AES-GCM output is [12 byte random IV][ciphertext][16 byte tag], unlike the
+ * CBC methods it never falls back to the key as IV and it detects tampering.
+ */
 public class AESUtil {
     private static final Logger LOG = LoggerFactory.getLogger(AESUtil.class);
+    private static final String CBC = "AES/CBC/PKCS5Padding";
+    private static final String ECB = "AES/ECB/PKCS5Padding";
+    private static final String GCM = "AES/GCM/NoPadding";
+    public static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_TAG_LENGTH = 16;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    public static final int KEY_CACHE_SIZE = 32;
+
+    private static final Map<CacheKey, byte[]> KEY_CACHE = new LinkedHashMap<CacheKey, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, byte[]> eldest) {
+            if (size() <= KEY_CACHE_SIZE) return false;
+            Arrays.fill(eldest.getValue(), (byte) 0);
+            return true;
+        }
+    };
+    private static final ThreadLocal<Cipher> CBC_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> ECB_CIPHER = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> GCM_CIPHER = new ThreadLocal<>();
 
     /**
      * AES CBC Decryption with salt
@@ -35,7 +80,11 @@ public class AESUtil {
     public static byte[] aesCbcDecrypt(byte[] encrypted, String password, byte[] salt, int iterations, byte[] iv) {
         byte[] raw = getRaw(password, salt, iterations);
         if (raw == null) return null;
-        return aesCbcDecrypt(encrypted, raw, iv);
+        try {
+            return aesCbcDecrypt(encrypted, raw, iv);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
     }
 
     /**
@@ -55,7 +104,7 @@ public class AESUtil {
     public static byte[] aesCbcDecrypt(byte[] encrypted, byte[] raw, byte[] iv) {
         try {
             SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher cipher = cipher(CBC_CIPHER, CBC);
             if (iv == null) {
                 cipher.init(Cipher.DECRYPT_MODE, skeySpec, new IvParameterSpec(raw));
             } else {
@@ -86,7 +135,11 @@ public class AESUtil {
     public static byte[] aesCbcEncrypt(byte[] plain, String password, byte[] salt, int iterations, byte[] iv) {
         byte[] raw = getRaw(password, salt, iterations);
         if (raw == null) return null;
-        return aesCbcEncrypt(plain, raw, iv);
+        try {
+            return aesCbcEncrypt(plain, raw, iv);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
     }
 
     /**
@@ -106,7 +159,7 @@ public class AESUtil {
     public static byte[] aesCbcEncrypt(byte[] plain, byte[] raw, byte[] iv) {
         try {
             SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            Cipher cipher = cipher(CBC_CIPHER, CBC);
             if (iv == null) {
                 cipher.init(Cipher.ENCRYPT_MODE, skeySpec, new IvParameterSpec(raw));
             } else {
@@ -131,7 +184,7 @@ public class AESUtil {
     public static byte[] aesEcbDecrypt(byte[] encrypted, byte[] raw) {
         try {
             SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            Cipher cipher = cipher(ECB_CIPHER, ECB);
             cipher.init(Cipher.DECRYPT_MODE, skeySpec);
             return cipher.doFinal(encrypted);
         } catch (NoSuchPaddingException
@@ -151,7 +204,7 @@ public class AESUtil {
     public static byte[] aesEcbEncrypt(byte[] plain, byte[] raw) {
         try {
             SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES");
-            Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            Cipher cipher = cipher(ECB_CIPHER, ECB);
             cipher.init(Cipher.ENCRYPT_MODE, skeySpec);
             return cipher.doFinal(plain);
         } catch (NoSuchPaddingException
@@ -165,22 +218,325 @@ public class AESUtil {
     }
 
     /**
-     * Generate key with salt for AES
+     * AES CBC Encryption from the remaining bytes of input into output, both may be direct
+     * buffers and may share memory (pass buffer.duplicate() to encrypt in place, the output
+     * is up to one block longer than the input)
+     *
+     * @param iv optional, if not specified, the value of raw will be used instead
+     * @return number of bytes written to output, -1 on failure
+     */
+    public static int aesCbcEncrypt(ByteBuffer input, ByteBuffer output, byte[] raw, byte[] iv) {
+        try {
+            Cipher cipher = cipher(CBC_CIPHER, CBC);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(raw, "AES"), new IvParameterSpec(iv == null ? raw : iv));
+            return cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * AES CBC Decryption from the remaining bytes of input into output, see
+     * {@link #aesCbcEncrypt(ByteBuffer, ByteBuffer, byte[], byte[])}
+     *
+     * @return number of bytes written to output, -1 on failure
+     */
+    public static int aesCbcDecrypt(ByteBuffer input, ByteBuffer output, byte[] raw, byte[] iv) {
+        try {
+            Cipher cipher = cipher(CBC_CIPHER, CBC);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(raw, "AES"), new IvParameterSpec(iv == null ? raw : iv));
+            return cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Wrap the stream so that everything written to it is AES CBC encrypted on the way out.
+     * Closing the wrapper writes the last block and closes the stream.
+     *
+     * @param iv optional, if not specified, the value of raw will be used instead
+     * @return null if the cipher cannot be set up
+     */
+    public static OutputStream aesCbcEncryptStream(OutputStream out, byte[] raw, byte[] iv) {
+        try {
+            Cipher cipher = Cipher.getInstance(CBC);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(raw, "AES"), new IvParameterSpec(iv == null ? raw : iv));
+            return new CipherOutputStream(out, cipher);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Wrap the stream so that reading from it returns the AES CBC decrypted content
+     *
+     * @param iv optional, if not specified, the value of raw will be used instead
+     * @return null if the cipher cannot be set up
+     */
+    public static InputStream aesCbcDecryptStream(InputStream in, byte[] raw, byte[] iv) {
+        try {
+            Cipher cipher = Cipher.getInstance(CBC);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(raw, "AES"), new IvParameterSpec(iv == null ? raw : iv));
+            return new CipherInputStream(in, cipher);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * AES GCM Encryption with salt
+     */
+    public static byte[] aesGcmEncrypt(byte[] plain, String password, byte[] salt, int iterations) {
+        byte[] raw = getRaw(password, salt, iterations);
+        if (raw == null) return null;
+        try {
+            return aesGcmEncrypt(plain, raw, null);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+
+    /**
+     * AES GCM Decryption with salt
+     */
+    public static byte[] aesGcmDecrypt(byte[] encrypted, String password, byte[] salt, int iterations) {
+        byte[] raw = getRaw(password, salt, iterations);
+        if (raw == null) return null;
+        try {
+            return aesGcmDecrypt(encrypted, raw, null);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+
+    /**
+     * AES GCM Encryption with a random IV
+     *
+     * @param aad optional data that is authenticated along with the content but not encrypted
+     * @return [IV][ciphertext][tag]
+     */
+    public static byte[] aesGcmEncrypt(byte[] plain, byte[] raw, byte[] aad) {
+        byte[] encrypted = new byte[GCM_IV_LENGTH + plain.length + GCM_TAG_LENGTH];
+        int length = aesGcmEncrypt(ByteBuffer.wrap(plain), ByteBuffer.wrap(encrypted), raw, aad);
+        return length < 0 ? null : encrypted;
+    }
+
+    /**
+     * AES GCM Decryption
+     *
+     * @return null on failure, including content or aad that do not match the tag
+     */
+    public static byte[] aesGcmDecrypt(byte[] encrypted, byte[] raw, byte[] aad) {
+        if (encrypted.length < GCM_IV_LENGTH + GCM_TAG_LENGTH) return null;
+        byte[] plain = new byte[encrypted.length - GCM_IV_LENGTH - GCM_TAG_LENGTH];
+        int length = aesGcmDecrypt(ByteBuffer.wrap(encrypted), ByteBuffer.wrap(plain), raw, aad);
+        return length < 0 ? null : plain;
+    }
+
+    /**
+     * AES GCM Encryption with a random IV from the remaining bytes of input into output, which
+     * needs room for {@link #GCM_IV_LENGTH} + input + {@link #GCM_TAG_LENGTH} bytes. Both may be
+     * direct buffers.
+     *
+     * @param aad optional data that is authenticated along with the content but not encrypted
+     * @return number of bytes written to output, -1 on failure
+     */
+    public static int aesGcmEncrypt(ByteBuffer input, ByteBuffer output, byte[] raw, byte[] aad) {
+        try {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            Cipher cipher = cipher(GCM_CIPHER, GCM);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(raw, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+            if (aad != null) cipher.updateAAD(aad);
+            if (output.remaining() < GCM_IV_LENGTH + cipher.getOutputSize(input.remaining())) {
+                LOG.error("Output buffer too small");
+                return -1;
+            }
+            output.put(iv);
+            return GCM_IV_LENGTH + cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * AES GCM Decryption from the remaining bytes of input, [IV][ciphertext][tag], into output
+     *
+     * @return number of bytes written to output, -1 on failure, including content or aad that
+     * do not match the tag
+     */
+    public static int aesGcmDecrypt(ByteBuffer input, ByteBuffer output, byte[] raw, byte[] aad) {
+        if (input.remaining() < GCM_IV_LENGTH + GCM_TAG_LENGTH) return -1;
+        try {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            input.get(iv);
+            Cipher cipher = cipher(GCM_CIPHER, GCM);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(raw, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+            if (aad != null) cipher.updateAAD(aad);
+            return cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Wrap the stream so that everything written to it is AES GCM encrypted on the way out, the
+     * random IV is written right away and the tag when the wrapper is closed.
+     *
+     * @return null if the cipher cannot be set up
+     */
+    public static OutputStream aesGcmEncryptStream(OutputStream out, byte[] raw) throws IOException {
+        try {
+            byte[] iv = new byte[GCM_IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(GCM);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(raw, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+            out.write(iv);
+            return new CipherOutputStream(out, cipher);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Wrap the stream so that reading from it returns the AES GCM decrypted content. The
+     * providers on the JVM and Android hold back decrypted data until the tag has been checked,
+     * so unlike CBC this takes memory in proportion to the content; a tag mismatch surfaces as
+     * an IOException from read.
+     *
+     * @return null if the cipher cannot be set up
+     */
+    public static InputStream aesGcmDecryptStream(InputStream in, byte[] raw) throws IOException {
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        int read = 0;
+        while (read < iv.length) {
+            int count = in.read(iv, read, iv.length - read);
+            if (count < 0) throw new IOException("Stream ends before the IV");
+            read += count;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(GCM);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(raw, "AES"),
+                    new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv));
+            return new CipherInputStream(in, cipher);
+        } catch (GeneralSecurityException e) {
+            LOG.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Drop and wipe every cached key
+     */
+    public static void clearKeyCache() {
+        synchronized (KEY_CACHE) {
+            for (byte[] raw : KEY_CACHE.values()) {
+                Arrays.fill(raw, (byte) 0);
+            }
+            KEY_CACHE.clear();
+        }
+    }
+
+    /**
+     * The cipher of this thread for the transformation, created on first use. Every caller
+     * initializes it, so whatever state the last caller left behind does not matter.
+     */
+    private static Cipher cipher(ThreadLocal<Cipher> local, String transformation)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Cipher cipher = local.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            local.set(cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Generate key with salt for AES, or take it from the cache
      *
      * @param password plain text password of any length
      * @param salt salt
      * @param iterations how many iterations -- larger for more secure
-     * @return key for AES input
+     * @return a copy of the key for AES input, which the caller should wipe after use
      */
     private static byte[] getRaw(String password, byte[] salt, int iterations) {
+        CacheKey key = CacheKey.of(password, salt, iterations);
+        if (key != null) {
+            synchronized (KEY_CACHE) {
+                byte[] raw = KEY_CACHE.get(key);
+                if (raw != null) return raw.clone();
+            }
+        }
+        byte[] raw;
         try {
             SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 128);
-            return factory.generateSecret(spec).getEncoded();
+            char[] chars = password.toCharArray();
+            PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, 128);
+            Arrays.fill(chars, '\0');
+            raw = factory.generateSecret(spec).getEncoded();
+            spec.clearPassword();
         } catch (InvalidKeySpecException |NoSuchAlgorithmException e) {
             LOG.error(e.getMessage(), e);
             return new byte[0];
         }
+        if (key != null) {
+            // Two threads may derive the same key at once, the second one just replaces the first
+            synchronized (KEY_CACHE) {
+                byte[] previous = KEY_CACHE.put(key, raw.clone());
+                if (previous != null) Arrays.fill(previous, (byte) 0);
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * SHA-256 of (iterations, salt, password) as a cache key
+     */
+    private static final class CacheKey {
+        private final byte[] digest;
+        private final int hash;
+
+        private CacheKey(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        static CacheKey of(String password, byte[] salt, int iterations) {
+            try {
+                MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                sha.update(ByteBuffer.allocate(8).putInt(iterations).putInt(salt.length).array());
+                sha.update(salt);
+                byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+                sha.update(passwordBytes);
+                Arrays.fill(passwordBytes, (byte) 0);
+                return new CacheKey(sha.digest());
+            } catch (NoSuchAlgorithmException e) {
+                // No cache then, derive every time
+                LOG.error(e.getMessage(), e);
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CacheKey && MessageDigest.isEqual(digest, ((CacheKey) other).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
     public static void main(String[] args) {
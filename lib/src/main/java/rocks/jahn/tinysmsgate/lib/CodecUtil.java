@@ -1,38 +1,341 @@
 package rocks.jahn.tinysmsgate.lib;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Hex and Base64 codecs.
+ *
+ * The encoders and decoders are table driven and write into a target supplied by the caller,
+ * a byte[] (as ASCII), ByteBuffer, CharBuffer or StringBuilder, so encoding a payload takes no
+ * allocation beyond the target. The *Length methods tell how large the target has to be. The
+ * String methods at the bottom are convenience wrappers around them.
+ *
+ * Hex is encoded in lower case and decoded in either case. Base64 comes in the standard
+ * alphabet with padding and the URL-safe one without; the decoder accepts both alphabets,
+ * with or without padding, and skips any other character such as line breaks.
+ */
 public class CodecUtil {
     private static final Logger LOG = LoggerFactory.getLogger(CodecUtil.class);
 
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final byte[] BASE64_URL =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes();
+    /** Value of each ASCII character, -1 for characters outside the alphabet */
+    private static final byte[] HEX_VALUES = new byte[128];
+    private static final byte[] BASE64_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX[i])] = (byte) i;
+        }
+        Arrays.fill(BASE64_VALUES, (byte) -1);
+        for (int i = 0; i < 64; i++) {
+            BASE64_VALUES[BASE64[i]] = (byte) i;
+            BASE64_VALUES[BASE64_URL[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * @return number of characters the hex encoding of byteCount bytes takes
+     */
+    public static int hexLength(int byteCount) {
+        return byteCount * 2;
+    }
+
+    /**
+     * Hex encode bytes as ASCII into dst
+     *
+     * @return number of bytes written
+     */
+    public static int hexEncode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int d = dstOffset;
+        for (int i = offset; i < offset + length; i++) {
+            dst[d++] = HEX[(src[i] >> 4) & 0x0F];
+            dst[d++] = HEX[src[i] & 0x0F];
+        }
+        return d - dstOffset;
+    }
+
+    public static void hexEncode(byte[] src, int offset, int length, StringBuilder dst) {
+        dst.ensureCapacity(dst.length() + hexLength(length));
+        for (int i = offset; i < offset + length; i++) {
+            dst.append((char) HEX[(src[i] >> 4) & 0x0F]);
+            dst.append((char) HEX[src[i] & 0x0F]);
+        }
+    }
+
+    /**
+     * Hex encode the remaining bytes of src into dst
+     */
+    public static void hexEncode(ByteBuffer src, CharBuffer dst) {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            dst.put((char) HEX[(b >> 4) & 0x0F]);
+            dst.put((char) HEX[b & 0x0F]);
+        }
+    }
+
+    /**
+     * @return number of bytes encoded in charCount hex characters, -1 if charCount is odd
+     */
+    public static int hexDecodedLength(int charCount) {
+        return (charCount & 1) == 0 ? charCount / 2 : -1;
+    }
+
+    /**
+     * Decode the hex characters between start and end into dst
+     *
+     * @return number of bytes written, -1 if the text is not valid hex
+     */
+    public static int hexDecode(CharSequence src, int start, int end, byte[] dst, int dstOffset) {
+        if (hexDecodedLength(end - start) < 0) return -1;
+        int d = dstOffset;
+        for (int i = start; i < end; i += 2) {
+            int high = hexValue(src.charAt(i));
+            int low = hexValue(src.charAt(i + 1));
+            if ((high | low) < 0) return -1;
+            dst[d++] = (byte) (high << 4 | low);
+        }
+        return d - dstOffset;
+    }
+
+    /**
+     * Decode all of src into dst, nothing is written if the text is not valid hex
+     *
+     * @return number of bytes written, -1 if the text is not valid hex
+     */
+    public static int hexDecode(CharSequence src, ByteBuffer dst) {
+        int length = src.length();
+        if (hexDecodedLength(length) < 0) return -1;
+        for (int i = 0; i < length; i++) {
+            if (hexValue(src.charAt(i)) < 0) return -1;
+        }
+        for (int i = 0; i < length; i += 2) {
+            dst.put((byte) (hexValue(src.charAt(i)) << 4 | hexValue(src.charAt(i + 1))));
+        }
+        return length / 2;
+    }
+
+    private static int hexValue(char c) {
+        return c < 128 ? HEX_VALUES[c] : -1;
+    }
+
+    /**
+     * @param urlSafe URL-safe encodings are not padded
+     * @return number of characters the Base64 encoding of byteCount bytes takes
+     */
+    public static int base64Length(int byteCount, boolean urlSafe) {
+        if (urlSafe) return (byteCount * 4 + 2) / 3;
+        return (byteCount + 2) / 3 * 4;
+    }
+
+    /**
+     * Base64 encode bytes as ASCII into dst
+     *
+     * @param urlSafe use - and _ instead of + and / and leave out the padding
+     * @return number of bytes written
+     */
+    public static int base64Encode(byte[] src, int offset, int length, byte[] dst, int dstOffset, boolean urlSafe) {
+        byte[] alphabet = urlSafe ? BASE64_URL : BASE64;
+        int d = dstOffset;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst[d++] = alphabet[bits >>> 18];
+            dst[d++] = alphabet[(bits >>> 12) & 0x3F];
+            dst[d++] = alphabet[(bits >>> 6) & 0x3F];
+            dst[d++] = alphabet[bits & 0x3F];
+        }
+        int left = end - i;
+        if (left > 0) {
+            int bits = (src[i] & 0xFF) << 16 | (left == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst[d++] = alphabet[bits >>> 18];
+            dst[d++] = alphabet[(bits >>> 12) & 0x3F];
+            if (left == 2) {
+                dst[d++] = alphabet[(bits >>> 6) & 0x3F];
+            } else if (!urlSafe) {
+                dst[d++] = '=';
+            }
+            if (!urlSafe) dst[d++] = '=';
+        }
+        return d - dstOffset;
+    }
+
+    public static void base64Encode(byte[] src, int offset, int length, StringBuilder dst, boolean urlSafe) {
+        dst.ensureCapacity(dst.length() + base64Length(length, urlSafe));
+        byte[] alphabet = urlSafe ? BASE64_URL : BASE64;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 3 <= end; i += 3) {
+            int bits = (src[i] & 0xFF) << 16 | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF);
+            dst.append((char) alphabet[bits >>> 18]);
+            dst.append((char) alphabet[(bits >>> 12) & 0x3F]);
+            dst.append((char) alphabet[(bits >>> 6) & 0x3F]);
+            dst.append((char) alphabet[bits & 0x3F]);
+        }
+        int left = end - i;
+        if (left > 0) {
+            int bits = (src[i] & 0xFF) << 16 | (left == 2 ? (src[i + 1] & 0xFF) << 8 : 0);
+            dst.append((char) alphabet[bits >>> 18]);
+            dst.append((char) alphabet[(bits >>> 12) & 0x3F]);
+            if (left == 2) {
+                dst.append((char) alphabet[(bits >>> 6) & 0x3F]);
+            } else if (!urlSafe) {
+                dst.append('=');
+            }
+            if (!urlSafe) dst.append('=');
+        }
+    }
+
+    /**
+     * Base64 encode the remaining bytes of src into dst
+     */
+    public static void base64Encode(ByteBuffer src, CharBuffer dst, boolean urlSafe) {
+        byte[] alphabet = urlSafe ? BASE64_URL : BASE64;
+        while (src.remaining() >= 3) {
+            int bits = (src.get() & 0xFF) << 16 | (src.get() & 0xFF) << 8 | (src.get() & 0xFF);
+            dst.put((char) alphabet[bits >>> 18]);
+            dst.put((char) alphabet[(bits >>> 12) & 0x3F]);
+            dst.put((char) alphabet[(bits >>> 6) & 0x3F]);
+            dst.put((char) alphabet[bits & 0x3F]);
+        }
+        int left = src.remaining();
+        if (left > 0) {
+            int bits = (src.get() & 0xFF) << 16 | (left == 2 ? (src.get() & 0xFF) << 8 : 0);
+            dst.put((char) alphabet[bits >>> 18]);
+            dst.put((char) alphabet[(bits >>> 12) & 0x3F]);
+            if (left == 2) {
+                dst.put((char) alphabet[(bits >>> 6) & 0x3F]);
+            } else if (!urlSafe) {
+                dst.put('=');
+            }
+            if (!urlSafe) dst.put('=');
+        }
+    }
+
+    /**
+     * @return number of bytes encoded in the Base64 text between start and end
+     */
+    public static int base64DecodedLength(CharSequence src, int start, int end) {
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = src.charAt(i);
+            if (c == '=') break;
+            if (base64Value(c) >= 0) digits++;
+        }
+        return digits * 3 / 4;
+    }
+
+    /**
+     * Decode the Base64 text between start and end into dst, up to the first padding character
+     *
+     * @return number of bytes written
+     */
+    public static int base64Decode(CharSequence src, int start, int end, byte[] dst, int dstOffset) {
+        int d = dstOffset;
+        int bits = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = src.charAt(i);
+            if (c == '=') break;
+            int value = base64Value(c);
+            if (value < 0) continue;
+            bits = bits << 6 | value;
+            if (++digits == 4) {
+                dst[d++] = (byte) (bits >> 16);
+                dst[d++] = (byte) (bits >> 8);
+                dst[d++] = (byte) bits;
+                bits = 0;
+                digits = 0;
+            }
+        }
+        if (digits >= 2) {
+            bits <<= 6 * (4 - digits);
+            dst[d++] = (byte) (bits >> 16);
+            if (digits == 3) dst[d++] = (byte) (bits >> 8);
+        }
+        return d - dstOffset;
+    }
+
+    /**
+     * Decode all of src into dst, see {@link #base64Decode(CharSequence, int, int, byte[], int)}
+     *
+     * @return number of bytes written
+     */
+    public static int base64Decode(CharSequence src, ByteBuffer dst) {
+        int start = dst.position();
+        int bits = 0;
+        int digits = 0;
+        for (int i = 0; i < src.length(); i++) {
+            char c = src.charAt(i);
+            if (c == '=') break;
+            int value = base64Value(c);
+            if (value < 0) continue;
+            bits = bits << 6 | value;
+            if (++digits == 4) {
+                dst.put((byte) (bits >> 16));
+                dst.put((byte) (bits >> 8));
+                dst.put((byte) bits);
+                bits = 0;
+                digits = 0;
+            }
+        }
+        if (digits >= 2) {
+            bits <<= 6 * (4 - digits);
+            dst.put((byte) (bits >> 16));
+            if (digits == 3) dst.put((byte) (bits >> 8));
+        }
+        return dst.position() - start;
+    }
+
+    private static int base64Value(char c) {
+        return c < 128 ? BASE64_VALUES[c] : -1;
+    }
+
     public static byte[] hexStringToBytes(String text) {
-        try {
-            return Hex.decodeHex(text.toCharArray());
-        } catch (DecoderException e) {
-            LOG.error(e.getMessage(), e);
+        int length = hexDecodedLength(text.length());
+        byte[] bytes = length < 0 ? null : new byte[length];
+        if (bytes == null || hexDecode(text, 0, text.length(), bytes, 0) < 0) {
+            LOG.error("Invalid hex string");
             return null;
         }
+        return bytes;
     }
 
     public static String hexBytesToString(byte[] bytes) {
-        return Hex.encodeHexString(bytes);
+        StringBuilder builder = new StringBuilder(hexLength(bytes.length));
+        hexEncode(bytes, 0, bytes.length, builder);
+        return builder.toString();
     }
 
     /**
      * Decode base64 string to bytes
      */
     public static byte[] base64StringToBytes(String base64String) {
-        return Base64.decodeBase64(base64String);
+        if (base64String == null) return null;
+        byte[] bytes = new byte[base64DecodedLength(base64String, 0, base64String.length())];
+        base64Decode(base64String, 0, base64String.length(), bytes, 0);
+        return bytes;
     }
 
     /**
      * Encode bytes to base64 string with default UTF-8 charset
      */
     public static String base64BytesToString(byte[] bytes) {
-        return Base64.encodeBase64String(bytes);
+        StringBuilder builder = new StringBuilder(base64Length(bytes.length, false));
+        base64Encode(bytes, 0, bytes.length, builder, false);
+        return builder.toString();
     }
 }
@@ -0,0 +1,224 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import java.util.Arrays;
+
+/**
+ * The GSM 7 bit default alphabet of 3GPP TS 23.038, its extension table and the Turkish and
+ * Spanish national language shift tables, plus the packing of septets into octets.
+ *
+ * A character is one septet in the locking shift table in use, or the escape septet followed by
+ * its code in the single shift table. Tables are picked by national language identifier,
+ * {@link #DEFAULT} being the default alphabet and its extension table. Spanish has no locking
+ * shift table of its own.
+ *
+ * Lookups go through a reverse table per shift table indexed by the character, so counting and
+ * encoding allocate nothing.
+ */
+public class Gsm7 {
+    public static final int DEFAULT = 0;
+    public static final int TURKISH = 1;
+    public static final int SPANISH = 2;
+    private static final int LANGUAGES = 3;
+
+    public static final int ESCAPE = 0x1B;
+    /** Placeholder for codes a table leaves unused */
+    private static final char UNUSED = '\uffff';
+
+    private static final String[] LOCKING = new String[LANGUAGES];
+    private static final char[][] SINGLE = new char[LANGUAGES][];
+    private static final byte[][] LOCKING_CODES = new byte[LANGUAGES][];
+    private static final byte[][] SINGLE_CODES = new byte[LANGUAGES][];
+
+    static {
+        LOCKING[DEFAULT] = "@\u00a3$\u00a5\u00e8\u00e9\u00f9\u00ec\u00f2\u00c7\n\u00d8\u00f8\r\u00c5\u00e5"
+                + "\u0394_\u03a6\u0393\u039b\u03a9\u03a0\u03a8\u03a3\u0398\u039e\uffff\u00c6\u00e6\u00df\u00c9"
+                + " !\"#\u00a4%&'()*+,-./"
+                + "0123456789:;<=>?"
+                + "\u00a1ABCDEFGHIJKLMNO"
+                + "PQRSTUVWXYZ\u00c4\u00d6\u00d1\u00dc\u00a7"
+                + "\u00bfabcdefghijklmno"
+                + "pqrstuvwxyz\u00e4\u00f6\u00f1\u00fc\u00e0";
+        LOCKING[TURKISH] = "@\u00a3$\u00a5\u20ac\u00e9\u00f9\u0131\u00f2\u00c7\n\u011e\u011f\r\u00c5\u00e5"
+                + "\u0394_\u03a6\u0393\u039b\u03a9\u03a0\u03a8\u03a3\u0398\u039e\uffff\u015e\u015f\u00df\u00c9"
+                + " !\"#\u00a4%&'()*+,-./"
+                + "0123456789:;<=>?"
+                + "\u0130ABCDEFGHIJKLMNO"
+                + "PQRSTUVWXYZ\u00c4\u00d6\u00d1\u00dc\u00a7"
+                + "\u00e7abcdefghijklmno"
+                + "pqrstuvwxyz\u00e4\u00f6\u00f1\u00fc\u00e0";
+
+        int[] extension = {
+                0x0A, '\f', 0x14, '^', 0x28, '{', 0x29, '}', 0x2F, '\\',
+                0x3C, '[', 0x3D, '~', 0x3E, ']', 0x40, '|', 0x65, '\u20ac'
+        };
+        SINGLE[DEFAULT] = singleShift(extension);
+        SINGLE[TURKISH] = singleShift(extension,
+                0x47, '\u011e', 0x49, '\u0130', 0x53, '\u015e', 0x63, '\u00e7',
+                0x67, '\u011f', 0x69, '\u0131', 0x73, '\u015f');
+        SINGLE[SPANISH] = singleShift(extension,
+                0x09, '\u00e7', 0x41, '\u00c1', 0x49, '\u00cd', 0x4F, '\u00d3', 0x55, '\u00da',
+                0x61, '\u00e1', 0x69, '\u00ed', 0x6F, '\u00f3', 0x75, '\u00fa');
+
+        for (int language = 0; language < LANGUAGES; language++) {
+            if (LOCKING[language] != null) LOCKING_CODES[language] = reverse(LOCKING[language].toCharArray());
+            SINGLE_CODES[language] = reverse(SINGLE[language]);
+        }
+    }
+
+    private static char[] singleShift(int[] common, int... national) {
+        char[] table = new char[128];
+        Arrays.fill(table, UNUSED);
+        for (int i = 0; i < common.length; i += 2) {
+            table[common[i]] = (char) common[i + 1];
+        }
+        for (int i = 0; i < national.length; i += 2) {
+            table[national[i]] = (char) national[i + 1];
+        }
+        return table;
+    }
+
+    private static byte[] reverse(char[] table) {
+        int size = 0;
+        for (char c : table) {
+            if (c != UNUSED) size = Math.max(size, c + 1);
+        }
+        byte[] codes = new byte[size];
+        Arrays.fill(codes, (byte) -1);
+        for (int code = 0; code < table.length; code++) {
+            if (table[code] != UNUSED) codes[table[code]] = (byte) code;
+        }
+        return codes;
+    }
+
+    public static boolean hasLockingShift(int language) {
+        return language >= 0 && language < LANGUAGES && LOCKING[language] != null;
+    }
+
+    public static boolean hasSingleShift(int language) {
+        return language >= 0 && language < LANGUAGES;
+    }
+
+    /**
+     * @return the code of the character in the locking shift table, -1 if it is not in there
+     */
+    public static int lockingCode(char c, int locking) {
+        byte[] codes = LOCKING_CODES[locking];
+        return c < codes.length ? codes[c] : -1;
+    }
+
+    /**
+     * @return the code of the character in the single shift table, -1 if it is not in there
+     */
+    public static int singleCode(char c, int single) {
+        byte[] codes = SINGLE_CODES[single];
+        return c < codes.length ? codes[c] : -1;
+    }
+
+    /**
+     * @return 1 or 2 septets, 0 if the character cannot be encoded with these tables
+     */
+    public static int septets(char c, int locking, int single) {
+        if (lockingCode(c, locking) >= 0) return 1;
+        return singleCode(c, single) >= 0 ? 2 : 0;
+    }
+
+    /**
+     * @return the septets the text takes, -1 if a character cannot be encoded with these tables
+     */
+    public static int septets(CharSequence text, int locking, int single) {
+        int total = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int septets = septets(text.charAt(i), locking, single);
+            if (septets == 0) return -1;
+            total += septets;
+        }
+        return total;
+    }
+
+    /**
+     * Write the septets of text[start, end) one per byte
+     *
+     * @return the number of septets written
+     * @throws IllegalArgumentException if a character cannot be encoded with these tables
+     */
+    public static int encode(CharSequence text, int start, int end, int locking, int single,
+                             byte[] septets, int offset) {
+        int position = offset;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            int code = lockingCode(c, locking);
+            if (code >= 0) {
+                septets[position++] = (byte) code;
+                continue;
+            }
+            code = singleCode(c, single);
+            if (code < 0) throw new IllegalArgumentException("Not in the GSM alphabet: U+" + Integer.toHexString(c));
+            septets[position++] = ESCAPE;
+            septets[position++] = (byte) code;
+        }
+        return position - offset;
+    }
+
+    /**
+     * Append the characters of count septets, one per byte. An escaped code the single shift
+     * table leaves unused reads as the locking shift character, as the spec asks.
+     */
+    public static void decode(byte[] septets, int offset, int count, int locking, int single, StringBuilder out) {
+        String table = LOCKING[hasLockingShift(locking) ? locking : DEFAULT];
+        char[] shift = SINGLE[hasSingleShift(single) ? single : DEFAULT];
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            int code = septets[i] & 0x7f;
+            char c = UNUSED;
+            if (code != ESCAPE) {
+                c = table.charAt(code);
+            } else if (i + 1 < end) {
+                int escaped = septets[++i] & 0x7f;
+                c = shift[escaped] != UNUSED ? shift[escaped] : table.charAt(escaped);
+            }
+            out.append(c != UNUSED ? c : ' ');
+        }
+    }
+
+    /**
+     * @return the octets count septets take after fillBits bits of padding
+     */
+    public static int packedLength(int count, int fillBits) {
+        return (fillBits + count * 7 + 7) / 8;
+    }
+
+    /**
+     * Pack septets, least significant bit first, after fillBits zero bits
+     *
+     * @return the number of octets written
+     */
+    public static int pack(byte[] septets, int offset, int count, int fillBits, byte[] out, int outOffset) {
+        int length = packedLength(count, fillBits);
+        Arrays.fill(out, outOffset, outOffset + length, (byte) 0);
+        int bit = fillBits;
+        for (int i = 0; i < count; i++) {
+            int septet = septets[offset + i] & 0x7f;
+            int index = outOffset + bit / 8;
+            int shift = bit % 8;
+            out[index] |= (byte) (septet << shift);
+            if (shift > 1) out[index + 1] |= (byte) (septet >> (8 - shift));
+            bit += 7;
+        }
+        return length;
+    }
+
+    /**
+     * Unpack count septets that start after fillBits bits, one per byte
+     */
+    public static void unpack(byte[] packed, int offset, int count, int fillBits, byte[] septets, int outOffset) {
+        int bit = fillBits;
+        for (int i = 0; i < count; i++) {
+            int index = offset + bit / 8;
+            int shift = bit % 8;
+            int value = (packed[index] & 0xff) >> shift;
+            if (shift > 1) value |= (packed[index + 1] & 0xff) << (8 - shift);
+            septets[outOffset + i] = (byte) (value & 0x7f);
+            bit += 7;
+        }
+    }
+}
@@ -7,20 +7,36 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.regex.Pattern;
-
+import java.util.concurrent.TimeUnit;
 
+/**
+ * IP address parsing and the addresses of this device.
+ *
+ * The parsers make a single pass over the text without allocating and can write the address
+ * bytes into a caller's array. IPv6 addresses may be compressed (::), end in an embedded IPv4
+ * address (::ffff:192.168.1.1) and carry a zone (fe80::1%wlan0), which is accepted and left out
+ * of the bytes. IPv4 octets may have leading zeros, as before.
+ *
+ * The interface addresses are read once and kept for {@link #SNAPSHOT_TTL} milliseconds, or
+ * until {@link #invalidateAddresses()} is called when the network changes, so reading them is
+ * cheap enough for the request path.
+ */
 public class NetworkUtil {
-    private static final Pattern IPV4_PATTERN = Pattern.compile("^(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)(\\.(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)){3}$");
-    private static final Pattern IPV6_STD_PATTERN = Pattern.compile("^(?:[0-9a-fA-F]{1,4}:){7}[0-9a-fA-F]{1,4}$");
-    private static final Pattern IPV6_HEX_COMPRESSED_PATTERN = Pattern.compile("^((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)::((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)$");
     private static final int TYPE_ALL = -1;
     private static final int TYPE_IPV4 = 0;
     private static final int TYPE_IPV6 = 1;
+    /** Flags of a parsed IPv6 address */
+    private static final int IPV6_COMPRESSED = 1;
+    private static final int IPV6_EMBEDDED_IPV4 = 2;
+    private static final int IPV6_ZONE = 4;
+    public static final long SNAPSHOT_TTL = 30 * 1000;
 
     private static final Logger LOG = LoggerFactory.getLogger(NetworkUtil.class);
+    private static final Object SNAPSHOT_LOCK = new Object();
+    private static volatile Snapshot snapshot;
 
     public static List<String> getIpv4Addresses() {
         return getIpAddresses(TYPE_IPV4);
@@ -34,12 +50,35 @@ public class NetworkUtil {
         return getIpAddresses(TYPE_ALL);
     }
 
+    /**
+     * Forget the address snapshot, the next call reads the interfaces again
+     */
+    public static void invalidateAddresses() {
+        snapshot = null;
+    }
+
     /**
      * Get IP address from non-localhost interface
      *
      * @param type: -1:all, 0:ipv4, 1:ipv6
+     * @return an unmodifiable list, null if the interfaces cannot be read
      */
     private static List<String> getIpAddresses(int type) {
+        Snapshot current = snapshot;
+        if (current == null || current.isExpired()) {
+            synchronized (SNAPSHOT_LOCK) {
+                current = snapshot;
+                if (current == null || current.isExpired()) {
+                    current = readAddresses();
+                    if (current == null) return null;
+                    snapshot = current;
+                }
+            }
+        }
+        return type == TYPE_IPV4 ? current.ipv4 : type == TYPE_IPV6 ? current.ipv6 : current.all;
+    }
+
+    private static Snapshot readAddresses() {
         Enumeration<NetworkInterface> interfaces;
         try {
             interfaces = NetworkInterface.getNetworkInterfaces();
@@ -47,8 +86,10 @@ public class NetworkUtil {
             LOG.error(e.getMessage(), e);
             return null;
         }
-        List<String> output = new ArrayList<>();
-        while (interfaces.hasMoreElements()) {
+        List<String> all = new ArrayList<>();
+        List<String> ipv4 = new ArrayList<>();
+        List<String> ipv6 = new ArrayList<>();
+        while (interfaces != null && interfaces.hasMoreElements()) {
             NetworkInterface inf = interfaces.nextElement();
             Enumeration<InetAddress> addresses = inf.getInetAddresses();
             while (addresses.hasMoreElements()) {
@@ -56,35 +97,192 @@ public class NetworkUtil {
                 if (!address.isLoopbackAddress()) {
                     String sAddr = address.getHostAddress();
                     if (isIPv4Address(sAddr)) {
-                        if (type != 1) {
-                            output.add(sAddr);
-                        }
+                        ipv4.add(sAddr);
+                        all.add(sAddr);
                     } else {
-                        if (type != 0) {
-                            int delim = sAddr.indexOf('%'); // drop ip6 zone suffix
-                            String ipv6Addr = (delim < 0)? sAddr : sAddr.substring(0, delim);
-                            output.add(ipv6Addr);
-                        }
+                        int delim = sAddr.indexOf('%'); // drop ip6 zone suffix
+                        String ipv6Addr = (delim < 0)? sAddr : sAddr.substring(0, delim);
+                        ipv6.add(ipv6Addr);
+                        all.add(ipv6Addr);
                     }
                 }
             }
         }
-        return output;
+        return new Snapshot(all, ipv4, ipv6);
     }
 
     public static boolean isIPv4Address(String input) {
-        return IPV4_PATTERN.matcher(input).matches();
+        return parseIPv4(input, 0, input.length(), null, 0);
     }
 
+    /**
+     * @return whether input is eight uncompressed groups
+     */
     public static boolean isIPv6StdAddress(String input) {
-        return IPV6_STD_PATTERN.matcher(input).matches();
+        return parseIPv6(input, null, 0) == 0;
     }
 
+    /**
+     * @return whether input is hex groups compressed with ::
+     */
     public static boolean isIPv6HexCompressedAddress(String input) {
-        return IPV6_HEX_COMPRESSED_PATTERN.matcher(input).matches();
+        return parseIPv6(input, null, 0) == IPV6_COMPRESSED;
     }
 
     public static boolean isIPv6Address(String input) {
-        return isIPv6StdAddress(input) || isIPv6HexCompressedAddress(input);
+        return parseIPv6(input, null, 0) >= 0;
+    }
+
+    /**
+     * Parse a dotted IPv4 address into 4 bytes at dst[offset]
+     *
+     * @return false if input is not an IPv4 address, dst may be partly written then
+     */
+    public static boolean parseIPv4Address(CharSequence input, byte[] dst, int offset) {
+        return parseIPv4(input, 0, input.length(), dst, offset);
+    }
+
+    /**
+     * Parse an IPv6 address into 16 bytes at dst[offset]
+     *
+     * @return false if input is not an IPv6 address, dst may be partly written then
+     */
+    public static boolean parseIPv6Address(CharSequence input, byte[] dst, int offset) {
+        return parseIPv6(input, dst, offset) >= 0;
+    }
+
+    /**
+     * Parse either kind of address into dst[offset], which needs room for 16 bytes
+     *
+     * @return 4 or 16 for the number of bytes written, -1 if input is not an IP address
+     */
+    public static int parseIpAddress(CharSequence input, byte[] dst, int offset) {
+        if (parseIPv4(input, 0, input.length(), dst, offset)) return 4;
+        if (parseIPv6(input, dst, offset) >= 0) return 16;
+        return -1;
+    }
+
+    private static boolean parseIPv4(CharSequence input, int start, int end, byte[] dst, int offset) {
+        int octets = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            char c = input.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) return false;
+            } else if (c == '.') {
+                if (digits == 0 || octets == 3) return false;
+                if (dst != null) dst[offset + octets] = (byte) value;
+                octets++;
+                value = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0 || octets != 3) return false;
+        if (dst != null) dst[offset + 3] = (byte) value;
+        return true;
+    }
+
+    /**
+     * @param dst where to write the 16 bytes, null to only validate
+     * @return IPV6_* flags describing the notation, -1 if input is not an IPv6 address
+     */
+    private static int parseIPv6(CharSequence input, byte[] dst, int offset) {
+        int end = input.length();
+        int flags = 0;
+        for (int i = 0; i < end; i++) {
+            if (input.charAt(i) == '%') {
+                if (i == end - 1) return -1;
+                end = i;
+                flags |= IPV6_ZONE;
+                break;
+            }
+        }
+        if (end < 2) return -1;
+
+        int groups = 0;
+        int gap = -1;
+        int i = 0;
+        if (input.charAt(0) == ':') {
+            if (input.charAt(1) != ':') return -1;
+            gap = 0;
+            flags |= IPV6_COMPRESSED;
+            i = 2;
+        }
+        while (i < end) {
+            int j = i;
+            int value = 0;
+            while (j < end && j - i <= 4) {
+                int digit = hexDigit(input.charAt(j));
+                if (digit < 0) break;
+                value = value << 4 | digit;
+                j++;
+            }
+            if (j < end && input.charAt(j) == '.') {
+                // The last 32 bits as a dotted IPv4 address
+                if (groups > 6 || !parseIPv4(input, i, end, dst, offset + groups * 2)) return -1;
+                groups += 2;
+                flags |= IPV6_EMBEDDED_IPV4;
+                break;
+            }
+            if (j == i || j - i > 4 || groups == 8) return -1;
+            if (dst != null) {
+                dst[offset + groups * 2] = (byte) (value >> 8);
+                dst[offset + groups * 2 + 1] = (byte) value;
+            }
+            groups++;
+            i = j;
+            if (i == end) break;
+            if (input.charAt(i) != ':') return -1;
+            i++;
+            if (i < end && input.charAt(i) == ':') {
+                if (gap >= 0) return -1;
+                gap = groups;
+                flags |= IPV6_COMPRESSED;
+                i++;
+            } else if (i == end) {
+                return -1;
+            }
+        }
+
+        if (gap < 0) return groups == 8 ? flags : -1;
+        if (groups > 7) return -1;
+        if (dst != null) {
+            // Move the groups after :: to the end and zero the ones it stands for
+            int tail = (groups - gap) * 2;
+            int zeros = 16 - groups * 2;
+            System.arraycopy(dst, offset + gap * 2, dst, offset + gap * 2 + zeros, tail);
+            for (int k = 0; k < zeros; k++) {
+                dst[offset + gap * 2 + k] = 0;
+            }
+        }
+        return flags;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') return c - '0';
+        if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+        return -1;
+    }
+
+    private static final class Snapshot {
+        final List<String> all;
+        final List<String> ipv4;
+        final List<String> ipv6;
+        final long takenAt = System.nanoTime();
+
+        Snapshot(List<String> all, List<String> ipv4, List<String> ipv6) {
+            this.all = Collections.unmodifiableList(all);
+            this.ipv4 = Collections.unmodifiableList(ipv4);
+            this.ipv6 = Collections.unmodifiableList(ipv6);
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - takenAt > TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_TTL);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,207 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How a text is encoded for sending, and into how many segments, which is what is paid for.
+ *
+ * The GSM 7 bit alphabet is used when every character is in it, otherwise the Spanish or Turkish
+ * national shift tables are tried, and UCS-2 is the last resort. Among the encodings that can
+ * take the text the one with the fewest segments wins, the plain alphabet on a tie because its
+ * header is the smallest.
+ *
+ * A single segment holds 140 octets of user data, less the user data header: 5 octets of
+ * concatenation information when there are several segments and 3 for every national shift
+ * table, plus 1 for the header length. That makes 160 or 153 septets in the plain alphabet and
+ * 70 or 67 UCS-2 code units. An escaped character is never split from its escape, nor a
+ * surrogate pair from its other half.
+ *
+ * Counting takes no allocation, {@link #plan(CharSequence, Plan)} fills a Plan the caller may
+ * reuse.
+ */
+public class SmsEncoding {
+    public static final int GSM7 = 0;
+    public static final int UCS2 = 1;
+
+    public static final int USER_DATA_OCTETS = 140;
+    /** Concatenation information element with an 8 bit reference */
+    static final int CONCAT_HEADER_OCTETS = 5;
+    /** National language single or locking shift information element */
+    static final int SHIFT_HEADER_OCTETS = 3;
+
+    /** {locking, single} shift tables in order of preference */
+    private static final int[][] TABLES = {
+            {Gsm7.DEFAULT, Gsm7.DEFAULT},
+            {Gsm7.DEFAULT, Gsm7.SPANISH},
+            {Gsm7.DEFAULT, Gsm7.TURKISH},
+            {Gsm7.TURKISH, Gsm7.DEFAULT},
+            {Gsm7.TURKISH, Gsm7.TURKISH}
+    };
+
+    /**
+     * @return the number of segments the text is sent in
+     */
+    public static int segmentCount(CharSequence text) {
+        int best = Integer.MAX_VALUE;
+        for (int[] tables : TABLES) {
+            int septets = Gsm7.septets(text, tables[0], tables[1]);
+            if (septets < 0) continue;
+            best = Math.min(best, gsmSegments(text, septets, tables[0], tables[1]));
+            // Nothing beats the plain alphabet
+            if (tables[0] == Gsm7.DEFAULT && tables[1] == Gsm7.DEFAULT) break;
+        }
+        return best != Integer.MAX_VALUE ? best : ucs2Segments(text);
+    }
+
+    /**
+     * Pick the encoding of the text
+     *
+     * @param plan filled in and returned, a new one if null
+     */
+    public static Plan plan(CharSequence text, Plan plan) {
+        return plan(text, plan, true);
+    }
+
+    /**
+     * Pick the encoding of the text
+     *
+     * @param plan filled in and returned, a new one if null
+     * @param nationalShift false to stick to the plain alphabet and UCS-2, as a phone does whose
+     *                      carrier configuration enables no national language tables
+     */
+    public static Plan plan(CharSequence text, Plan plan, boolean nationalShift) {
+        if (plan == null) plan = new Plan();
+        plan.segments = Integer.MAX_VALUE;
+        for (int i = 0; i < (nationalShift ? TABLES.length : 1); i++) {
+            int[] tables = TABLES[i];
+            int septets = Gsm7.septets(text, tables[0], tables[1]);
+            if (septets < 0) continue;
+            int segments = gsmSegments(text, septets, tables[0], tables[1]);
+            if (segments < plan.segments) {
+                plan.encoding = GSM7;
+                plan.lockingShift = tables[0];
+                plan.singleShift = tables[1];
+                plan.segments = segments;
+                plan.units = septets;
+            }
+            if (tables[0] == Gsm7.DEFAULT && tables[1] == Gsm7.DEFAULT) break;
+        }
+        if (plan.segments == Integer.MAX_VALUE) {
+            plan.encoding = UCS2;
+            plan.lockingShift = Gsm7.DEFAULT;
+            plan.singleShift = Gsm7.DEFAULT;
+            plan.segments = ucs2Segments(text);
+            plan.units = text.length();
+        }
+        plan.unitsPerSegment = capacity(plan.encoding, plan.segments > 1, plan.lockingShift, plan.singleShift);
+        return plan;
+    }
+
+    /**
+     * Cut the text where the segments of the plan end
+     */
+    public static List<String> split(CharSequence text, Plan plan) {
+        List<String> segments = new ArrayList<>(plan.segments);
+        if (plan.segments == 1) {
+            segments.add(text.toString());
+            return segments;
+        }
+        int start = 0;
+        int used = 0;
+        for (int i = 0; i < text.length(); ) {
+            int units = units(text, i, plan);
+            if (used + units > plan.unitsPerSegment) {
+                segments.add(text.subSequence(start, i).toString());
+                start = i;
+                used = 0;
+            }
+            used += units;
+            i += plan.encoding == GSM7 ? 1 : units;
+        }
+        segments.add(text.subSequence(start, text.length()).toString());
+        return segments;
+    }
+
+    /**
+     * @return septets or code units the character at i takes, with the low surrogate after a
+     * high one
+     */
+    private static int units(CharSequence text, int i, Plan plan) {
+        if (plan.encoding == GSM7) return Gsm7.septets(text.charAt(i), plan.lockingShift, plan.singleShift);
+        return ucs2Units(text, i);
+    }
+
+    private static int ucs2Units(CharSequence text, int i) {
+        return Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(i + 1)) ? 2 : 1;
+    }
+
+    /**
+     * @return septets or code units one segment holds
+     */
+    public static int capacity(int encoding, boolean concatenated, int lockingShift, int singleShift) {
+        int octets = USER_DATA_OCTETS - headerOctets(concatenated, lockingShift, singleShift);
+        return encoding == GSM7 ? octets * 8 / 7 : octets / 2;
+    }
+
+    /**
+     * @return octets of the user data header including its length, 0 if there is none
+     */
+    static int headerOctets(boolean concatenated, int lockingShift, int singleShift) {
+        int header = (concatenated ? CONCAT_HEADER_OCTETS : 0)
+                + (lockingShift != Gsm7.DEFAULT ? SHIFT_HEADER_OCTETS : 0)
+                + (singleShift != Gsm7.DEFAULT ? SHIFT_HEADER_OCTETS : 0);
+        return header == 0 ? 0 : header + 1;
+    }
+
+    private static int gsmSegments(CharSequence text, int septets, int locking, int single) {
+        if (septets <= capacity(GSM7, false, locking, single)) return 1;
+        int capacity = capacity(GSM7, true, locking, single);
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < text.length(); i++) {
+            int units = Gsm7.septets(text.charAt(i), locking, single);
+            if (used + units > capacity) {
+                segments++;
+                used = 0;
+            }
+            used += units;
+        }
+        return segments;
+    }
+
+    private static int ucs2Segments(CharSequence text) {
+        if (text.length() <= capacity(UCS2, false, Gsm7.DEFAULT, Gsm7.DEFAULT)) return 1;
+        int capacity = capacity(UCS2, true, Gsm7.DEFAULT, Gsm7.DEFAULT);
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < text.length(); ) {
+            int units = ucs2Units(text, i);
+            if (used + units > capacity) {
+                segments++;
+                used = 0;
+            }
+            used += units;
+            i += units;
+        }
+        return segments;
+    }
+
+    /**
+     * The encoding picked for a text
+     */
+    public static class Plan {
+        /** GSM7 or UCS2 */
+        public int encoding;
+        /** National language of the locking shift table, {@link Gsm7#DEFAULT} for none */
+        public int lockingShift;
+        /** National language of the single shift table, {@link Gsm7#DEFAULT} for none */
+        public int singleShift;
+        public int segments;
+        /** Septets or UCS-2 code units of the whole text */
+        public int units;
+        /** Septets or UCS-2 code units one segment holds */
+        public int unitsPerSegment;
+    }
+}
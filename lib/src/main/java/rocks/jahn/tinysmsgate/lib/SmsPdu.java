@@ -0,0 +1,362 @@
+package rocks.jahn.tinysmsgate.lib;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes SMS-SUBMIT and decodes SMS-DELIVER PDUs of 3GPP TS 23.040, the form SmsManager
+ * sends and the pdus extra of the SMS_RECEIVED broadcast carries.
+ *
+ * Submitted PDUs leave the SMSC address to the phone, ask for no validity period and carry the
+ * user data header {@link SmsEncoding} plans for: concatenation with an 8 bit reference and the
+ * national language shift tables. Delivered PDUs are read in the GSM 7 bit alphabet with any
+ * shift tables their header names, in UCS-2 or as 8 bit data, which reads as ISO-8859-1.
+ *
+ * {@link #concat(byte[])} only walks the header in place, for the receive path where
+ * SmsMessage does the rest.
+ */
+public class SmsPdu {
+    private static final int IEI_CONCAT_8 = 0x00;
+    private static final int IEI_CONCAT_16 = 0x08;
+    private static final int IEI_SINGLE_SHIFT = 0x24;
+    private static final int IEI_LOCKING_SHIFT = 0x25;
+
+    private static final int MTI_SUBMIT = 0x01;
+    private static final int SRR = 0x20;
+    private static final int UDHI = 0x40;
+    private static final int TOA_INTERNATIONAL = 0x91;
+    private static final int TOA_UNKNOWN = 0x81;
+    private static final int TON_MASK = 0x70;
+    private static final int TON_INTERNATIONAL = 0x10;
+    private static final int TON_ALPHANUMERIC = 0x50;
+
+    public static final int DCS_GSM7 = 0x00;
+    public static final int DCS_8BIT = 0x04;
+    public static final int DCS_UCS2 = 0x08;
+
+    /** Most segments an 8 bit concatenation reference can number */
+    public static final int MAX_SEGMENTS = 255;
+
+    /**
+     * The SMS-SUBMIT PDUs of a text, one per segment
+     *
+     * @param reference concatenation reference, the same for all segments of the text and
+     *                  different from that of the texts sent to the number recently
+     * @param statusReport whether to ask for a delivery report
+     * @throws IllegalArgumentException if the text needs more than {@link #MAX_SEGMENTS}
+     */
+    public static List<byte[]> submit(String destination, CharSequence text, int reference, boolean statusReport) {
+        SmsEncoding.Plan plan = SmsEncoding.plan(text, null);
+        if (plan.segments > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("Text needs " + plan.segments + " segments");
+        }
+        List<String> segments = SmsEncoding.split(text, plan);
+        List<byte[]> pdus = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            pdus.add(submit(destination, segments.get(i), plan, reference, i + 1, statusReport));
+        }
+        return pdus;
+    }
+
+    /**
+     * The SMS-SUBMIT PDU of one segment
+     *
+     * @param segment the text of the segment, as cut by {@link SmsEncoding#split}
+     * @param sequence 1 based number of the segment
+     */
+    public static byte[] submit(String destination, CharSequence segment, SmsEncoding.Plan plan, int reference,
+                                int sequence, boolean statusReport) {
+        boolean concatenated = plan.segments > 1;
+        int header = SmsEncoding.headerOctets(concatenated, plan.lockingShift, plan.singleShift);
+        String digits = StringUtil.normalizePhone(destination);
+        boolean international = digits.startsWith("+");
+        if (international) digits = digits.substring(1);
+
+        byte[] pdu = new byte[4 + 2 + (digits.length() + 1) / 2 + 3 + SmsEncoding.USER_DATA_OCTETS];
+        int i = 0;
+        pdu[i++] = 0;
+        pdu[i++] = (byte) (MTI_SUBMIT | (statusReport ? SRR : 0) | (header > 0 ? UDHI : 0));
+        pdu[i++] = 0;
+        pdu[i++] = (byte) digits.length();
+        pdu[i++] = (byte) (international ? TOA_INTERNATIONAL : TOA_UNKNOWN);
+        for (int d = 0; d < digits.length(); d += 2) {
+            int low = digits.charAt(d) - '0';
+            int high = d + 1 < digits.length() ? digits.charAt(d + 1) - '0' : 0x0F;
+            pdu[i++] = (byte) ((high << 4) | low);
+        }
+        pdu[i++] = 0;
+        pdu[i++] = (byte) (plan.encoding == SmsEncoding.GSM7 ? DCS_GSM7 : DCS_UCS2);
+        int udl = i++;
+        int ud = i;
+
+        if (header > 0) {
+            pdu[i++] = (byte) (header - 1);
+            if (concatenated) {
+                pdu[i++] = IEI_CONCAT_8;
+                pdu[i++] = 3;
+                pdu[i++] = (byte) reference;
+                pdu[i++] = (byte) plan.segments;
+                pdu[i++] = (byte) sequence;
+            }
+            if (plan.lockingShift != Gsm7.DEFAULT) {
+                pdu[i++] = IEI_LOCKING_SHIFT;
+                pdu[i++] = 1;
+                pdu[i++] = (byte) plan.lockingShift;
+            }
+            if (plan.singleShift != Gsm7.DEFAULT) {
+                pdu[i++] = IEI_SINGLE_SHIFT;
+                pdu[i++] = 1;
+                pdu[i++] = (byte) plan.singleShift;
+            }
+        }
+
+        if (plan.encoding == SmsEncoding.GSM7) {
+            byte[] septets = new byte[segment.length() * 2];
+            int count = Gsm7.encode(segment, 0, segment.length(), plan.lockingShift, plan.singleShift, septets, 0);
+            int fill = fillBits(header);
+            checkLength(header + Gsm7.packedLength(count, fill));
+            pdu[udl] = (byte) ((header * 8 + fill) / 7 + count);
+            i += Gsm7.pack(septets, 0, count, fill, pdu, i);
+        } else {
+            byte[] bytes = segment.toString().getBytes(StandardCharsets.UTF_16BE);
+            checkLength(header + bytes.length);
+            System.arraycopy(bytes, 0, pdu, i, bytes.length);
+            i += bytes.length;
+            pdu[udl] = (byte) (i - ud);
+        }
+        byte[] result = new byte[i];
+        System.arraycopy(pdu, 0, result, 0, i);
+        return result;
+    }
+
+    private static void checkLength(int userDataOctets) {
+        if (userDataOctets > SmsEncoding.USER_DATA_OCTETS) {
+            throw new IllegalArgumentException("Segment is longer than " + SmsEncoding.USER_DATA_OCTETS + " octets");
+        }
+    }
+
+    /**
+     * Read a whole SMS-DELIVER PDU
+     *
+     * @param pdu starting with the SMSC address
+     * @throws IllegalArgumentException if it is not an SMS-DELIVER PDU or is cut short
+     */
+    public static Deliver deliver(byte[] pdu) {
+        try {
+            int i = 1 + (pdu[0] & 0xff);
+            int first = pdu[i++] & 0xff;
+            if ((first & 0x03) != 0) throw new IllegalArgumentException("Not an SMS-DELIVER PDU");
+
+            int addressDigits = pdu[i++] & 0xff;
+            int addressType = pdu[i++] & 0xff;
+            String originator = address(pdu, i, addressDigits, addressType);
+            i += (addressDigits + 1) / 2;
+            i++;
+            int dcs = pdu[i++] & 0xff;
+            long timestamp = timestamp(pdu, i);
+            i += 7;
+            int udl = pdu[i++] & 0xff;
+
+            int header = 0;
+            Concat concat = null;
+            int[] shifts = {Gsm7.DEFAULT, Gsm7.DEFAULT};
+            if ((first & UDHI) != 0) {
+                header = (pdu[i] & 0xff) + 1;
+                concat = readHeader(pdu, i + 1, i + header, shifts);
+            }
+            int alphabet = alphabet(dcs);
+            String text;
+            if (alphabet == DCS_GSM7) {
+                int fill = fillBits(header);
+                int count = udl - (header * 8 + fill) / 7;
+                if (count < 0 || i + Gsm7.packedLength(count, header * 8 + fill) > pdu.length) {
+                    throw new IllegalArgumentException("User data is cut short");
+                }
+                byte[] septets = new byte[count];
+                Gsm7.unpack(pdu, i + header, count, fill, septets, 0);
+                StringBuilder sb = new StringBuilder(count);
+                Gsm7.decode(septets, 0, count, shifts[0], shifts[1], sb);
+                text = sb.toString();
+            } else {
+                int length = udl - header;
+                if (length < 0 || i + udl > pdu.length) throw new IllegalArgumentException("User data is cut short");
+                text = new String(pdu, i + header, length,
+                        alphabet == DCS_UCS2 ? StandardCharsets.UTF_16BE : StandardCharsets.ISO_8859_1);
+            }
+            return new Deliver(originator, timestamp, dcs, text, concat);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("PDU is cut short");
+        }
+    }
+
+    /**
+     * @param pdu an SMS-DELIVER PDU starting with the SMSC address
+     * @return where the text belongs in a concatenated message, null if it is not a part of one
+     * or the PDU is malformed
+     */
+    public static Concat concat(byte[] pdu) {
+        if (pdu == null || pdu.length < 1) return null;
+        // Skip the SMSC address
+        int i = 1 + (pdu[0] & 0xff);
+        if (i >= pdu.length) return null;
+        int first = pdu[i++] & 0xff;
+        // TP-MTI 00 is SMS-DELIVER, TP-UDHI tells whether there is a header at all
+        if ((first & 0x03) != 0 || (first & UDHI) == 0) return null;
+
+        if (i + 2 > pdu.length) return null;
+        // The length counts semi-octets, also for alphanumeric senders, then comes the type
+        int addressDigits = pdu[i] & 0xff;
+        i += 2 + (addressDigits + 1) / 2;
+        // TP-PID, TP-DCS, TP-SCTS and TP-UDL
+        i += 1 + 1 + 7 + 1;
+        if (i >= pdu.length) return null;
+
+        int headerLength = pdu[i++] & 0xff;
+        int end = i + headerLength;
+        if (end > pdu.length) return null;
+        return readHeader(pdu, i, end, null);
+    }
+
+    /**
+     * Walk the information elements of a user data header
+     *
+     * @param shifts gets the locking and single shift languages, may be null
+     * @return the concatenation element, null if there is none or the header is malformed
+     */
+    private static Concat readHeader(byte[] pdu, int i, int end, int[] shifts) {
+        if (end > pdu.length) return null;
+        Concat concat = null;
+        while (i + 2 <= end) {
+            int id = pdu[i++] & 0xff;
+            int length = pdu[i++] & 0xff;
+            if (i + length > end) return null;
+            if (id == IEI_CONCAT_8 && length == 3) {
+                concat = Concat.of(pdu[i] & 0xff, pdu[i + 1] & 0xff, pdu[i + 2] & 0xff);
+            } else if (id == IEI_CONCAT_16 && length == 4) {
+                concat = Concat.of(((pdu[i] & 0xff) << 8) | (pdu[i + 1] & 0xff), pdu[i + 2] & 0xff, pdu[i + 3] & 0xff);
+            } else if (id == IEI_LOCKING_SHIFT && length == 1 && shifts != null) {
+                shifts[0] = Gsm7.hasLockingShift(pdu[i]) ? pdu[i] : Gsm7.DEFAULT;
+            } else if (id == IEI_SINGLE_SHIFT && length == 1 && shifts != null) {
+                shifts[1] = Gsm7.hasSingleShift(pdu[i]) ? pdu[i] : Gsm7.DEFAULT;
+            }
+            i += length;
+        }
+        return concat;
+    }
+
+    /**
+     * @return padding bits that put the septets after a header of that many octets on a septet
+     * boundary
+     */
+    private static int fillBits(int headerOctets) {
+        return (7 - headerOctets * 8 % 7) % 7;
+    }
+
+    /**
+     * @return DCS_GSM7, DCS_8BIT or DCS_UCS2 for a data coding scheme of 3GPP TS 23.038
+     */
+    static int alphabet(int dcs) {
+        if ((dcs & 0x80) == 0) {
+            // General data coding, also with automatic deletion
+            int alphabet = dcs & 0x0C;
+            if ((dcs & 0x20) != 0) throw new IllegalArgumentException("Compressed texts are not supported");
+            return alphabet == 0x0C ? DCS_GSM7 : alphabet;
+        }
+        if ((dcs & 0xF0) == 0xF0) return (dcs & 0x04) != 0 ? DCS_8BIT : DCS_GSM7;
+        if ((dcs & 0xF0) == 0xE0) return DCS_UCS2;
+        return DCS_GSM7;
+    }
+
+    private static String address(byte[] pdu, int offset, int digits, int type) {
+        if ((type & TON_MASK) == TON_ALPHANUMERIC) {
+            int count = digits * 4 / 7;
+            byte[] septets = new byte[count];
+            Gsm7.unpack(pdu, offset, count, 0, septets, 0);
+            StringBuilder sb = new StringBuilder(count);
+            Gsm7.decode(septets, 0, count, Gsm7.DEFAULT, Gsm7.DEFAULT, sb);
+            return sb.toString();
+        }
+        StringBuilder sb = new StringBuilder(digits + 1);
+        if ((type & TON_MASK) == TON_INTERNATIONAL) sb.append('+');
+        for (int d = 0; d < digits; d++) {
+            int value = (pdu[offset + d / 2] >> (d % 2 == 0 ? 0 : 4)) & 0x0F;
+            if (value == 0x0F) break;
+            sb.append(value < 10 ? (char) ('0' + value) : "*#abc".charAt(value - 10));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return epoch milliseconds of a service centre time stamp, in semi-octets with the zone in
+     * quarter hours
+     */
+    private static long timestamp(byte[] pdu, int offset) {
+        int year = 2000 + semiOctets(pdu[offset]);
+        int month = semiOctets(pdu[offset + 1]);
+        int day = semiOctets(pdu[offset + 2]);
+        long seconds = daysFromCivil(year, month, day) * 86400L
+                + semiOctets(pdu[offset + 3]) * 3600 + semiOctets(pdu[offset + 4]) * 60 + semiOctets(pdu[offset + 5]);
+        int zone = pdu[offset + 6];
+        int quarters = (zone & 0x07) * 10 + ((zone >> 4) & 0x0F);
+        if ((zone & 0x08) != 0) quarters = -quarters;
+        return (seconds - quarters * 15 * 60L) * 1000;
+    }
+
+    private static int semiOctets(byte b) {
+        return (b & 0x0F) * 10 + ((b >> 4) & 0x0F);
+    }
+
+    /**
+     * @return days since 1970-01-01 of a date in the proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    public static class Deliver {
+        /** Number, with a + when international, or alphanumeric sender name */
+        public final String originator;
+        /** Service centre time stamp, epoch milliseconds */
+        public final long timestamp;
+        public final int dataCoding;
+        public final String text;
+        /** Null if the text is not a part of a concatenated one */
+        public final Concat concat;
+
+        public Deliver(String originator, long timestamp, int dataCoding, String text, Concat concat) {
+            this.originator = originator;
+            this.timestamp = timestamp;
+            this.dataCoding = dataCoding;
+            this.text = text;
+            this.concat = concat;
+        }
+    }
+
+    public static class Concat {
+        /** Same for all parts of one message from one sender */
+        public final int reference;
+        public final int count;
+        /** 1 based */
+        public final int sequence;
+
+        private Concat(int reference, int count, int sequence) {
+            this.reference = reference;
+            this.count = count;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return null for the invalid combinations the spec says to ignore
+         */
+        static Concat of(int reference, int count, int sequence) {
+            if (count == 0 || sequence == 0 || sequence > count) return null;
+            return new Concat(reference, count, sequence);
+        }
+    }
+}
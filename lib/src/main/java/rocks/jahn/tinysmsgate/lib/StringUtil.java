@@ -18,4 +18,25 @@ public class StringUtil {
         }
         return sb.toString();
     }
+
+    /**
+     * The digits of a phone number, with a leading + kept and a leading 00 turned into one, so
+     * that "+49 (171) 555-0100" and "0049171 5550100" compare equal
+     */
+    public static String normalizePhone(String phone) {
+        if (phone == null) return "";
+        StringBuilder sb = new StringBuilder(phone.length());
+        for (int i = 0; i < phone.length(); i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append(c);
+            } else if (c == '+' && sb.length() == 0) {
+                sb.append(c);
+            }
+        }
+        if (sb.length() > 2 && sb.charAt(0) == '0' && sb.charAt(1) == '0') {
+            sb.replace(0, 2, "+");
+        }
+        return sb.toString();
+    }
 }